@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.Command;
+import com.appunite.cache.CommandName;
+import com.appunite.cache.CommandsDescription;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Cached counters shared by benchmarks
+ */
+class Counters {
+    static final CommandName<Long, Long> ADD = CommandName.of("add");
+    static final List<CommandName<Long, ?>> COMMANDS = ImmutableList.<CommandName<Long, ?>>of(ADD);
+
+    private Counters() {
+    }
+
+    @Nonnull
+    static CommandsDescription newCommandsDescription() {
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(Long.MAX_VALUE)
+                // Keys written once per trial should not expire during long runs
+                .expireAfterWrite(365, TimeUnit.DAYS)
+                .build();
+        commandsDescription.addCommand(ADD, new Command<Long, Long>() {
+            @Nonnull
+            @Override
+            public UpdateResult<Long> apply(@Nullable Long parameter, @Nonnull Long object) {
+                return UpdateResult.forUpdate(object + parameter);
+            }
+        });
+        return commandsDescription;
+    }
+
+    @Nonnull
+    static List<CacheKey<Long>> keys(String prefix, int count) {
+        final ImmutableList.Builder<CacheKey<Long>> keys = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            keys.add(CacheKey.<Long>of(prefix + i));
+        }
+        return keys.build();
+    }
+}
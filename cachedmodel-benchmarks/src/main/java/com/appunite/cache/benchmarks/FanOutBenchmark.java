@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.CacheInvalidationListener;
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandsDescription;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Cost of notifying listeners registered for single key when it changes
+ */
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    private static final CacheKey<Long> KEY = CacheKey.of("key");
+
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    private CommandsDescription mCommandsDescription;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mCommandsDescription = Counters.newCommandsDescription();
+        mCommandsDescription.putCache(KEY, 0L, Counters.COMMANDS);
+        for (int i = 0; i < listeners; i++) {
+            mCommandsDescription.register(KEY, new CacheInvalidationListener<Long>() {
+                @Override
+                public void onChanged(@Nonnull Long object) {
+                    blackhole.consume(object);
+                }
+
+                @Override
+                public void onInvalidated() {
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        mCommandsDescription.invalidate(Counters.ADD, 1L);
+    }
+}
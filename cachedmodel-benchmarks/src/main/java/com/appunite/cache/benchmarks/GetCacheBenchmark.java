@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandsDescription;
+import com.google.common.base.Optional;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of {@link CommandsDescription#getCacheIfPresent} for hit, miss and hit that has to
+ * replay pending commands
+ */
+@State(Scope.Thread)
+public class GetCacheBenchmark {
+
+    private static final CacheKey<Long> KEY = CacheKey.of("key");
+    private static final CacheKey<Long> MISSING_KEY = CacheKey.of("missing");
+
+    @Param({"1", "10", "100"})
+    public int pendingCommands;
+
+    private CommandsDescription mCommandsDescription;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCommandsDescription = Counters.newCommandsDescription();
+        mCommandsDescription.putCache(KEY, 0L, Counters.COMMANDS);
+    }
+
+    @Benchmark
+    public Optional<Long> hit() {
+        return mCommandsDescription.getCacheIfPresent(KEY);
+    }
+
+    @Benchmark
+    public Optional<Long> miss() {
+        return mCommandsDescription.getCacheIfPresent(MISSING_KEY);
+    }
+
+    /**
+     * Invalidations are not registered by holders so they wait in command log until read
+     */
+    @State(Scope.Thread)
+    public static class PendingCommands {
+        @Setup(Level.Invocation)
+        public void setUp(GetCacheBenchmark benchmark) {
+            benchmark.mCommandsDescription.putCache(KEY, 0L, Counters.COMMANDS);
+            for (int i = 0; i < benchmark.pendingCommands; i++) {
+                benchmark.mCommandsDescription.invalidate(Counters.ADD, 1L);
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<Long> hitWithPendingCommands(PendingCommands pendingCommands) {
+        return mCommandsDescription.getCacheIfPresent(KEY);
+    }
+}
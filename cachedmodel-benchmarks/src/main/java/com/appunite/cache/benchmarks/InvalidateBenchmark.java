@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.CacheInvalidationListener;
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandsDescription;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Cost of {@link CommandsDescription#invalidate} depending on number of registered holders
+ * affected by command and length of command log
+ */
+@State(Scope.Thread)
+public class InvalidateBenchmark {
+
+    private static final CacheKey<Long> PINNING_KEY = CacheKey.of("pinning");
+
+    @Param({"1", "100", "1000"})
+    public int holders;
+
+    @Param({"0", "1000", "100000"})
+    public int logLength;
+
+    private CommandsDescription mCommandsDescription;
+
+    @Setup(Level.Iteration)
+    public void setUp(final Blackhole blackhole) {
+        mCommandsDescription = Counters.newCommandsDescription();
+        // Cached element that is never read keeps commands in log
+        mCommandsDescription.putCache(PINNING_KEY, 0L, Counters.COMMANDS);
+        for (int i = 0; i < logLength; i++) {
+            mCommandsDescription.invalidate(Counters.ADD, 1L);
+        }
+        for (CacheKey<Long> key : Counters.keys("holder", holders)) {
+            mCommandsDescription.putCache(key, 0L, Counters.COMMANDS);
+            mCommandsDescription.register(key, new CacheInvalidationListener<Long>() {
+                @Override
+                public void onChanged(@Nonnull Long object) {
+                    blackhole.consume(object);
+                }
+
+                @Override
+                public void onInvalidated() {
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void invalidate() {
+        mCommandsDescription.invalidate(Counters.ADD, 1L);
+    }
+}
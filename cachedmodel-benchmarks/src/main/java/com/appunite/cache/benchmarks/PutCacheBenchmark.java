@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandsDescription;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Cost of {@link CommandsDescription#putCache} depending on number of cached keys
+ */
+@State(Scope.Thread)
+public class PutCacheBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int keys;
+
+    private CommandsDescription mCommandsDescription;
+    private List<CacheKey<Long>> mKeys;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mCommandsDescription = Counters.newCommandsDescription();
+        mKeys = Counters.keys("key", keys);
+        for (CacheKey<Long> key : mKeys) {
+            mCommandsDescription.putCache(key, 0L, Counters.COMMANDS);
+        }
+    }
+
+    @Benchmark
+    public void putCache() {
+        mCommandsDescription.putCache(mKeys.get(mNext), (long) mNext, Counters.COMMANDS);
+        mNext = (mNext + 1) % mKeys.size();
+    }
+}
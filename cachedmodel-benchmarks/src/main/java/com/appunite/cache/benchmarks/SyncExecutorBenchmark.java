@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache.benchmarks;
+
+import com.appunite.cache.SameThreadScheduler;
+import com.appunite.cache.SyncExecutor;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Overhead of {@link SyncExecutor#executeAndReturn} dispatch, call and callbacks run on calling
+ * thread so only executor machinery is measured
+ */
+@State(Scope.Thread)
+public class SyncExecutorBenchmark {
+
+    @Param({"1", "100"})
+    public int calls;
+
+    private SyncExecutor mSyncExecutor;
+    private Callable<Long> mCall;
+    private SyncExecutor.Method<Long> mMethod;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mSyncExecutor = new SyncExecutor(MoreExecutors.newDirectExecutorService(),
+                new SameThreadScheduler());
+        mCall = new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return 1L;
+            }
+        };
+        mMethod = new SyncExecutor.Method<Long>() {
+            @Override
+            public void run(Long data) {
+                blackhole.consume(data);
+            }
+
+            @Override
+            public void except(Exception e) {
+                blackhole.consume(e);
+            }
+        };
+    }
+
+    @Benchmark
+    public void executeAndReturn() {
+        for (int i = 0; i < calls; i++) {
+            mSyncExecutor.executeAndReturn(mCall, mMethod);
+        }
+    }
+
+    @Benchmark
+    public void executeAndReturnShared() {
+        for (int i = 0; i < calls; i++) {
+            mSyncExecutor.executeAndReturnShared("key", mCall, mMethod, mMethod);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Additive increase, multiplicative decrease limiter. Limit grows by one after a limit worth of
+ * fast calls and is multiplied by backoff ratio after a call that failed or took longer than
+ * latency threshold.
+ */
+public class AimdLimiter implements ConcurrencyLimiter {
+
+    public static class Builder {
+        private int mInitialLimit = 4;
+        private int mMinLimit = 1;
+        private int mMaxLimit = 16;
+        private long mLatencyThresholdNanos = TimeUnit.SECONDS.toNanos(2);
+        private double mBackoffRatio = 0.75;
+
+        public Builder() {
+        }
+
+        @Nonnull
+        public Builder initialLimit(int initialLimit) {
+            checkArgument(initialLimit > 0, "initialLimit should be positive");
+            mInitialLimit = initialLimit;
+            return this;
+        }
+
+        @Nonnull
+        public Builder limits(int minLimit, int maxLimit) {
+            checkArgument(minLimit > 0, "minLimit should be positive");
+            checkArgument(maxLimit >= minLimit, "maxLimit could not be smaller than minLimit");
+            mMinLimit = minLimit;
+            mMaxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Calls slower than threshold are treated as sign of overload
+         */
+        @Nonnull
+        public Builder latencyThreshold(long duration, @Nonnull TimeUnit unit) {
+            checkArgument(duration > 0, "duration should be positive");
+            mLatencyThresholdNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        @Nonnull
+        public Builder backoffRatio(double backoffRatio) {
+            checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio should be in (0, 1)");
+            mBackoffRatio = backoffRatio;
+            return this;
+        }
+
+        @Nonnull
+        public AimdLimiter build() {
+            return new AimdLimiter(this);
+        }
+    }
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final long mLatencyThresholdNanos;
+    private final double mBackoffRatio;
+    /**
+     * Fractional limit so additive increase could be spread over many calls, guarded by this
+     */
+    private double mLimit;
+
+    private AimdLimiter(@Nonnull Builder builder) {
+        mMinLimit = builder.mMinLimit;
+        mMaxLimit = builder.mMaxLimit;
+        mLatencyThresholdNanos = builder.mLatencyThresholdNanos;
+        mBackoffRatio = builder.mBackoffRatio;
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, builder.mInitialLimit));
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    @Override
+    public synchronized void onSample(long latencyNanos, boolean failed, int inFlight) {
+        if (failed || latencyNanos > mLatencyThresholdNanos) {
+            mLimit = Math.max(mMinLimit, Math.floor(mLimit * mBackoffRatio));
+        } else if (inFlight * 2 >= (int) mLimit) {
+            // Grow only if limit is really used, otherwise it would grow without bound
+            mLimit = Math.min(mMaxLimit, mLimit + 1.0 / mLimit);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("limit", mLimit)
+                .add("minLimit", mMinLimit)
+                .add("maxLimit", mMaxLimit)
+                .toString();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Command that could apply many queued invocations at once. When cached object is replayed,
+ * consecutive invocations of the same command are passed to
+ * {@link #applyAll(List, Object)} instead of calling {@link #apply(Object, Object)} for every
+ * one of them.
+ */
+public interface BatchCommand<T, K> extends Command<T, K> {
+    /**
+     * @param parameters parameters of queued invocations in order they were issued, could contain
+     *                   null values
+     * @return result equal to applying every parameter in order
+     */
+    @Nonnull
+    public UpdateResult<T> applyAll(@Nonnull List<K> parameters, @Nonnull T object);
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Ticker;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Scheduler that queues runnables and runs many of them in a single dispatch of delegate
+ * scheduler, i.e. one main thread message for a burst of results.
+ *
+ * One dispatch runs queued runnables until time budget is exceeded, the rest is run in the next
+ * dispatch so a burst does not block the main thread for a long time.
+ */
+public class BatchingScheduler implements Scheduler {
+
+    @Nonnull
+    private final Scheduler mDelegate;
+    @Nonnull
+    private final Ticker mTicker;
+    private final long mBudgetNanos;
+    @Nonnull
+    private final Queue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+    @Nonnull
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    @Nonnull
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public BatchingScheduler(@Nonnull Scheduler delegate, long budget, @Nonnull TimeUnit unit) {
+        this(delegate, budget, unit, Ticker.systemTicker());
+    }
+
+    public BatchingScheduler(@Nonnull Scheduler delegate, long budget, @Nonnull TimeUnit unit,
+                             @Nonnull Ticker ticker) {
+        checkArgument(budget > 0, "budget should be positive");
+        mDelegate = checkNotNull(delegate);
+        mBudgetNanos = unit.toNanos(budget);
+        mTicker = checkNotNull(ticker);
+    }
+
+    @Override
+    public void schedule(@Nonnull Runnable runnable) {
+        mQueue.add(checkNotNull(runnable));
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mDelegate.schedule(mDrain);
+        }
+    }
+
+    private void drain() {
+        final long deadline = mTicker.read() + mBudgetNanos;
+        try {
+            Runnable runnable;
+            while ((runnable = mQueue.poll()) != null) {
+                runnable.run();
+                if (mTicker.read() - deadline >= 0) {
+                    break;
+                }
+            }
+        } finally {
+            mDrainScheduled.set(false);
+            // Runnables added after last poll or left because of budget
+            if (!mQueue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+}
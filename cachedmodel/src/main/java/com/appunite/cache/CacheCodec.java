@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Serializes cached objects so they could be stored on disk.
+ *
+ * @see CommandsDescription.Builder#codec(Class, CacheCodec)
+ */
+public interface CacheCodec<T> {
+    public void encode(@Nonnull T object, @Nonnull DataOutput output) throws IOException;
+
+    @Nonnull
+    public T decode(@Nonnull DataInput input) throws IOException;
+}
@@ -36,6 +36,15 @@ public class CacheKey<T> {
         return new CacheKey<>(cacheKey);
     }
 
+    @Nonnull
+    String getKey() {
+        return mCacheKey;
+    }
+
+    boolean startsWith(@Nonnull String prefix) {
+        return mCacheKey.startsWith(prefix);
+    }
+
     @Override
     public boolean equals(@Nullable Object o) {
         if (this == o) return true;
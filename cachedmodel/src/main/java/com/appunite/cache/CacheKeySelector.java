@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Routes command parameter to cache keys that could be affected by command. Commands are not
+ * replayed on cache elements stored under other keys.
+ */
+public interface CacheKeySelector<K> {
+    @Nonnull
+    public Selection select(@Nullable K parameter);
+
+    public static class Selection {
+        private static final Selection ALL = new Selection(null, null);
+
+        @Nullable
+        private final ImmutableSet<CacheKey<?>> mKeys;
+        @Nullable
+        private final String mPrefix;
+
+        private Selection(@Nullable ImmutableSet<CacheKey<?>> keys, @Nullable String prefix) {
+            mKeys = keys;
+            mPrefix = prefix;
+        }
+
+        public boolean matches(@Nonnull CacheKey<?> cacheKey) {
+            checkNotNull(cacheKey);
+            if (mKeys != null) {
+                return mKeys.contains(cacheKey);
+            } else if (mPrefix != null) {
+                return cacheKey.startsWith(mPrefix);
+            } else {
+                return true;
+            }
+        }
+
+        /**
+         * @return exactly selected keys or null if selection is not limited to set of keys
+         */
+        @Nullable
+        ImmutableSet<CacheKey<?>> getKeys() {
+            return mKeys;
+        }
+
+        @Nonnull
+        public static Selection forKeys(@Nonnull CacheKey<?>... keys) {
+            return forKeys(Arrays.asList(checkNotNull(keys)));
+        }
+
+        @Nonnull
+        public static Selection forKeys(@Nonnull Iterable<? extends CacheKey<?>> keys) {
+            return new Selection(ImmutableSet.<CacheKey<?>>copyOf(checkNotNull(keys)), null);
+        }
+
+        @Nonnull
+        public static Selection forPrefix(@Nonnull String prefix) {
+            return new Selection(null, checkNotNull(prefix));
+        }
+
+        @Nonnull
+        public static Selection all() {
+            return ALL;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("keys", mKeys)
+                    .add("prefix", mPrefix)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import javax.annotation.Nonnull;
+
+public class CacheMetricsAdapter implements CacheMetricsListener {
+    private final static CacheMetricsListener EMPTY = new CacheMetricsAdapter();
+
+    /**
+     * Listener that does nothing, {@link CommandsDescription} does not collect metrics at all
+     * when it is used
+     */
+    @Nonnull
+    public static CacheMetricsListener getEmpty() {
+        return EMPTY;
+    }
+
+    @Override
+    public void onHit(@Nonnull CacheKey<?> cacheKey) {
+    }
+
+    @Override
+    public void onMiss(@Nonnull CacheKey<?> cacheKey) {
+    }
+
+    @Override
+    public void onEviction(@Nonnull CacheKey<?> cacheKey) {
+    }
+
+    @Override
+    public void onReplay(@Nonnull CacheKey<?> cacheKey, int commands, long durationNanos,
+                         boolean invalidated) {
+    }
+
+    @Override
+    public void onCommandAdded(@Nonnull CommandName<?, ?> commandName, int logSize) {
+    }
+
+    @Override
+    public void onHoldersChanged(int holders) {
+    }
+
+    @Override
+    public void onNotified(@Nonnull CacheKey<?> cacheKey, int listeners) {
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives statistics of {@link CommandsDescription}, could be used to size and tune cache.
+ * Methods are called synchronously from threads that use cache so they should be cheap.
+ *
+ * @see CommandsDescription.Builder#metricsListener(CacheMetricsListener)
+ * @see CacheMetricsAdapter
+ */
+public interface CacheMetricsListener {
+    /**
+     * Object was found by {@link CommandsDescription#getCacheIfPresent(CacheKey)}
+     */
+    public void onHit(@Nonnull CacheKey<?> cacheKey);
+
+    /**
+     * Object was not found by {@link CommandsDescription#getCacheIfPresent(CacheKey)}
+     */
+    public void onMiss(@Nonnull CacheKey<?> cacheKey);
+
+    /**
+     * Object was evicted from memory because of size or expiration
+     */
+    public void onEviction(@Nonnull CacheKey<?> cacheKey);
+
+    /**
+     * Pending commands were replayed on cached object
+     *
+     * @param commands number of replayed commands
+     * @param durationNanos time spent on replay
+     * @param invalidated true if any command returned {@link Command.UpdateResult#forInvalidate()}
+     */
+    public void onReplay(@Nonnull CacheKey<?> cacheKey, int commands, long durationNanos,
+                         boolean invalidated);
+
+    /**
+     * Command was added to command log
+     *
+     * @param logSize number of commands in log
+     */
+    public void onCommandAdded(@Nonnull CommandName<?, ?> commandName, int logSize);
+
+    /**
+     * Listener was registered or unregistered
+     *
+     * @param holders number of keys with registered listeners
+     */
+    public void onHoldersChanged(int holders);
+
+    /**
+     * Listeners of key were notified about change or invalidation
+     *
+     * @param listeners number of notified listeners
+     */
+    public void onNotified(@Nonnull CacheKey<?> cacheKey, int listeners);
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Notified when object is dropped from {@link CommandsDescription} and is not retained anymore,
+ * i.e. it expired or was evicted and not written to disk. Objects of registered keys are not
+ * reported. Called synchronously, possibly while key lock is held, so it should be cheap and
+ * should not call back {@link CommandsDescription}.
+ *
+ * @see CommandsDescription#addRemovalListener(CacheRemovalListener)
+ */
+public interface CacheRemovalListener {
+    public void onRemoved(@Nonnull CacheKey<?> cacheKey);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Describes how list-like object changed, so listeners could update only changed part of UI.
+ * Operations should be applied in order, positions of every operation are relative to result of
+ * previous ones.
+ *
+ * @see Command.UpdateResult#forUpdate(Object, ChangeDelta)
+ * @see DeltaCacheInvalidationListener
+ */
+public class ChangeDelta {
+
+    public static final ChangeDelta EMPTY = new ChangeDelta(ImmutableList.<Operation>of());
+
+    public static class Operation {
+        public static enum Type {
+            INSERTED,
+            REMOVED,
+            CHANGED
+        }
+
+        @Nonnull
+        private final Type mType;
+        private final int mStart;
+        private final int mCount;
+
+        private Operation(@Nonnull Type type, int start, int count) {
+            checkArgument(start >= 0, "start could not be negative");
+            checkArgument(count > 0, "count should be positive");
+            mType = checkNotNull(type);
+            mStart = start;
+            mCount = count;
+        }
+
+        @Nonnull
+        public Type getType() {
+            return mType;
+        }
+
+        public int getStart() {
+            return mStart;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("type", mType)
+                    .add("start", mStart)
+                    .add("count", mCount)
+                    .toString();
+        }
+    }
+
+    @Nonnull
+    private final ImmutableList<Operation> mOperations;
+
+    private ChangeDelta(@Nonnull ImmutableList<Operation> operations) {
+        mOperations = operations;
+    }
+
+    @Nonnull
+    public static ChangeDelta inserted(int start, int count) {
+        return of(new Operation(Operation.Type.INSERTED, start, count));
+    }
+
+    @Nonnull
+    public static ChangeDelta removed(int start, int count) {
+        return of(new Operation(Operation.Type.REMOVED, start, count));
+    }
+
+    @Nonnull
+    public static ChangeDelta changed(int start, int count) {
+        return of(new Operation(Operation.Type.CHANGED, start, count));
+    }
+
+    @Nonnull
+    private static ChangeDelta of(@Nonnull Operation operation) {
+        return new ChangeDelta(ImmutableList.of(operation));
+    }
+
+    /**
+     * @return delta describing this change followed by next one
+     */
+    @Nonnull
+    public ChangeDelta then(@Nonnull ChangeDelta next) {
+        checkNotNull(next);
+        if (mOperations.isEmpty()) {
+            return next;
+        }
+        if (next.mOperations.isEmpty()) {
+            return this;
+        }
+        return new ChangeDelta(ImmutableList.<Operation>builder()
+                .addAll(mOperations)
+                .addAll(next.mOperations)
+                .build());
+    }
+
+    @Nonnull
+    public List<Operation> getOperations() {
+        return mOperations;
+    }
+
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    /**
+     * @return position of item after change, or position where it was if item was removed
+     */
+    public int getNewPosition(int position) {
+        for (Operation operation : mOperations) {
+            switch (operation.mType) {
+                case INSERTED:
+                    if (operation.mStart <= position) {
+                        position += operation.mCount;
+                    }
+                    break;
+                case REMOVED:
+                    if (operation.mStart + operation.mCount <= position) {
+                        position -= operation.mCount;
+                    } else if (operation.mStart < position) {
+                        position = operation.mStart;
+                    }
+                    break;
+                case CHANGED:
+                    break;
+            }
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("operations", mOperations)
+                .toString();
+    }
+}
@@ -38,15 +38,19 @@ public interface Command<T, K> {
         private final T mParam;
         @Nonnull
         private final Type mType;
+        @Nullable
+        private final ChangeDelta mDelta;
 
-        private UpdateResult(@Nullable T param, @Nonnull Type type) {
+        private UpdateResult(@Nullable T param, @Nonnull Type type, @Nullable ChangeDelta delta) {
             mType = checkNotNull(type);
             if (Type.UPDATED.equals(type)) {
                 checkArgument(param != null);
             } else {
                 checkArgument(param == null);
+                checkArgument(delta == null);
             }
             mParam = param;
+            mDelta = delta;
         }
 
         public boolean isInvalidate() {
@@ -64,17 +68,34 @@ public interface Command<T, K> {
             return mParam;
         }
 
+        /**
+         * @return description of update, null if unknown
+         */
+        @Nullable
+        public ChangeDelta getDelta() {
+            return mDelta;
+        }
+
         public static <T> UpdateResult<T>forUpdate(@Nonnull T param) {
             checkNotNull(param);
-            return new UpdateResult<>(param, Type.UPDATED);
+            return new UpdateResult<>(param, Type.UPDATED, null);
+        }
+
+        /**
+         * Update that describes what changed, so listeners could update only changed part
+         */
+        public static <T> UpdateResult<T> forUpdate(@Nonnull T param, @Nonnull ChangeDelta delta) {
+            checkNotNull(param);
+            checkNotNull(delta);
+            return new UpdateResult<>(param, Type.UPDATED, delta);
         }
 
         public static <T> UpdateResult<T>forUpdateNotRequired() {
-            return new UpdateResult<>(null, Type.UPDATE_NOT_REQUIRED);
+            return new UpdateResult<>(null, Type.UPDATE_NOT_REQUIRED, null);
         }
 
         public static <T> UpdateResult<T>forInvalidate() {
-            return new UpdateResult<>(null, Type.INVALIDATE);
+            return new UpdateResult<>(null, Type.INVALIDATE, null);
         }
 
 
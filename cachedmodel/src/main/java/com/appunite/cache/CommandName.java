@@ -36,6 +36,11 @@ public final class CommandName<T, K> {
         return new CommandName<>(checkNotNull(commandName));
     }
 
+    @Nonnull
+    String getName() {
+        return mCommandName;
+    }
+
     @Override
     public boolean equals(@Nullable Object o) {
         if (this == o) return true;
@@ -22,46 +22,81 @@ import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+/**
+ * Cache of objects that could be updated by commands.
+ *
+ * All methods are thread safe. Reads never block: they replay commands on immutable snapshots
+ * and publish results with compare and set. Writers of the same {@link CacheKey} are serialized
+ * by striped locks, listeners are notified after locks are released with the latest state of
+ * cache.
+ */
 public class CommandsDescription {
 
     private static class CommandToExecute<T, K> {
-        public static final Comparator<? super CommandToExecute<?, ?>> SORT_VERSION_ASC = new Comparator<CommandToExecute<?, ?>>() {
-            @Override
-            public int compare(CommandToExecute<?, ?> o1, CommandToExecute<?, ?> o2) {
-                return o1.version = o2.version;
-            }
-        };
-        public int version;
+        public final int version;
         @Nonnull
-        public CommandName<T, K> commandName;
+        public final CommandName<T, K> commandName;
         @Nullable
-        public K parameter;
+        public final K parameter;
+        @Nonnull
+        public final CacheKeySelector.Selection selection;
 
         public CommandToExecute(int version,
                                 @Nonnull CommandName<T, K> commandName,
-                                @Nullable K parameter) {
+                                @Nullable K parameter,
+                                @Nonnull CacheKeySelector.Selection selection) {
             this.version = version;
             this.commandName = commandName;
             this.parameter = parameter;
+            this.selection = selection;
         }
 
         @Nonnull
@@ -85,20 +120,23 @@ public class CommandsDescription {
         }
 
         @Nonnull
-        public static Predicate<? super CommandToExecute<?, ?>> matchingVersionGraterOrEqualTo(final int version) {
+        public static Predicate<? super CommandToExecute<?, ?>> matchingCacheKey(@Nonnull final CacheKey<?> cacheKey) {
+            checkNotNull(cacheKey);
             return new Predicate<CommandToExecute<?, ?>>() {
                 @Override
                 public boolean apply(@Nullable CommandToExecute<?, ?> input) {
-                    return input != null && input.version >= version;
+                    return input != null && input.selection.matches(cacheKey);
                 }
             };
         }
 
         @Nonnull
         public static <T> Predicate<? super CommandToExecute<?, ?>> matchingCacheElement(
+                @Nonnull CacheKey<T> cacheKey,
                 @Nonnull final CacheElement<T> cacheElement) {
             checkNotNull(cacheElement);
-            return Predicates.and(matchingVersionGraterOrEqualTo(cacheElement.version), matchingCommandsNames(cacheElement.commands));
+            return Predicates.and(matchingCommandsNames(cacheElement.commands),
+                    matchingCacheKey(cacheKey));
         }
 
         @Override
@@ -107,12 +145,20 @@ public class CommandsDescription {
                     .add("version", version)
                     .add("commandName", commandName)
                     .add("parameter", parameter)
+                    .add("selection", selection)
                     .toString();
         }
     }
 
+    /**
+     * Immutable snapshot of cached object. New snapshots are published with compare and set on
+     * {@link Slot}.
+     */
     private static class CacheElement<T> {
 
+        private static final long NO_REVISION = -1L;
+        private static final AtomicLong REVISIONS = new AtomicLong();
+
         private static <X> Function<CacheElement<X>, X> toObject() {
             return new Function<CacheElement<X>, X>() {
                 @Nullable
@@ -123,18 +169,67 @@ public class CommandsDescription {
             };
         }
 
-        public int version;
+        /**
+         * Commands with this or greater version were not yet applied to object
+         */
+        public final int version;
         @Nonnull
-        public T object;
+        public final T object;
         @Nonnull
-        public List<CommandName<T, ?>> commands;
+        public final List<CommandName<T, ?>> commands;
+        /**
+         * Wall clock time in millis when object was put to cache, kept when commands are applied
+         */
+        public final long writeTime;
+        /**
+         * Unique identifier of object, changes when object changes
+         */
+        public final long revision;
+        /**
+         * Revision that {@link #delta} is relative to, or {@link #NO_REVISION}
+         */
+        public final long previousRevision;
+        @Nullable
+        public final ChangeDelta delta;
 
         public CacheElement(int version,
                             @Nonnull T object,
-                            @Nonnull List<CommandName<T, ?>> commands) {
+                            @Nonnull List<CommandName<T, ?>> commands,
+                            long writeTime) {
+            this(version, object, commands, writeTime, nextRevision(), NO_REVISION, null);
+        }
+
+        public CacheElement(int version,
+                            @Nonnull T object,
+                            @Nonnull List<CommandName<T, ?>> commands,
+                            long writeTime,
+                            long revision,
+                            long previousRevision,
+                            @Nullable ChangeDelta delta) {
             this.version = version;
             this.object = checkNotNull(object);
             this.commands = checkNotNull(commands);
+            this.writeTime = writeTime;
+            this.revision = revision;
+            this.previousRevision = previousRevision;
+            this.delta = delta;
+        }
+
+        public static long nextRevision() {
+            return REVISIONS.incrementAndGet();
+        }
+
+        /**
+         * @return delta from given revision to this element, null if unknown
+         */
+        @Nullable
+        public ChangeDelta deltaFrom(long deliveredRevision) {
+            if (deliveredRevision == revision) {
+                return ChangeDelta.EMPTY;
+            }
+            return deliveredRevision != NO_REVISION && deliveredRevision == previousRevision
+                    ? delta
+                    : null;
         }
 
         @Override
@@ -143,30 +238,112 @@ public class CommandsDescription {
                     .add("version", version)
                     .add("object", object)
                     .add("commands", commands)
+                    .add("writeTime", writeTime)
                     .toString();
         }
     }
 
+    /**
+     * Current snapshot of a cache key shared by LRU cache and registered holder, null if
+     * snapshot was invalidated.
+     */
+    @SuppressWarnings("serial")
+    private static class Slot<T> extends AtomicReference<CacheElement<T>> {
+        public Slot(@Nullable CacheElement<T> cacheElement) {
+            super(cacheElement);
+        }
+    }
+
+    /**
+     * Value of LRU cache. Slots pinned by registered holders are stored with zero weight because
+     * they are accounted in {@link CommandsDescription#mPinnedWeight}.
+     */
+    private static class CacheEntry {
+        @Nonnull
+        final Slot<?> slot;
+        final int weight;
+        /**
+         * Tick of last access, entries with lower ticks are evicted first by
+         * {@link CommandsDescription#trimToMaximumWeight()}
+         */
+        volatile long accessTick;
+
+        private CacheEntry(@Nonnull Slot<?> slot, int weight, long accessTick) {
+            this.slot = checkNotNull(slot);
+            this.weight = weight;
+            this.accessTick = accessTick;
+        }
+    }
+
     private static class CacheHolder<T> {
         @Nonnull
-        Optional<CacheElement<T>> object;
+        final CacheKey<T> cacheKey;
+        @Nonnull
+        volatile Slot<T> slot;
+        /**
+         * Weight of current snapshot accounted in {@link CommandsDescription#mPinnedWeight}
+         */
+        @Nonnull
+        final AtomicInteger weight = new AtomicInteger();
+        /**
+         * Commands under which this holder is present in command index, guarded by key lock
+         */
         @Nonnull
-        List<CacheInvalidationListener<T>> references = Lists.newArrayList();
+        List<CommandName<T, ?>> indexedCommands = ImmutableList.of();
+        @Nonnull
+        final List<CacheInvalidationListener<T>> references = new CopyOnWriteArrayList<>();
+        /**
+         * References that are not active, i.e. their screen is not visible
+         */
+        @Nonnull
+        final Set<CacheInvalidationListener<T>> inactive = Sets.newConcurrentHashSet();
+        /**
+         * Set when commands could be pending, invalidation sets it before checking {@link #isActive()}
+         */
+        volatile boolean dirty;
+        /**
+         * Revisions last delivered to delta listeners
+         */
+        @Nonnull
+        final Map<CacheInvalidationListener<T>, Long> deliveredRevisions = Maps.newHashMap();
 
-        private CacheHolder(@Nonnull Optional<CacheElement<T>> object) {
-            this.object = object;
+        private CacheHolder(@Nonnull CacheKey<T> cacheKey, @Nonnull Slot<T> slot) {
+            this.cacheKey = cacheKey;
+            this.slot = slot;
         }
 
-        public void onChanged(T object) {
-            final ImmutableList<CacheInvalidationListener<T>> copy = ImmutableList.copyOf(references);
-            for (CacheInvalidationListener<T> reference : copy) {
-                reference.onChanged(object);
+        public void onChanged(@Nonnull CacheElement<T> cacheElement) {
+            for (CacheInvalidationListener<T> reference : references) {
+                if (reference instanceof DeltaCacheInvalidationListener) {
+                    final Long deliveredRevision;
+                    synchronized (deliveredRevisions) {
+                        deliveredRevision = deliveredRevisions.put(reference, cacheElement.revision);
+                    }
+                    final ChangeDelta delta = deliveredRevision == null
+                            ? null
+                            : cacheElement.deltaFrom(deliveredRevision);
+                    ((DeltaCacheInvalidationListener<T>) reference).onChanged(cacheElement.object, delta);
+                } else {
+                    reference.onChanged(cacheElement.object);
+                }
+            }
+        }
+
+        public boolean isActive() {
+            return references.size() > inactive.size();
+        }
+
+        public void forgetDelivered(@Nonnull CacheInvalidationListener<T> listener) {
+            synchronized (deliveredRevisions) {
+                deliveredRevisions.remove(listener);
             }
         }
 
         public void onInvalidated() {
-            final ImmutableList<CacheInvalidationListener<T>> copy = ImmutableList.copyOf(references);
-            for (CacheInvalidationListener<T> reference : copy) {
+            synchronized (deliveredRevisions) {
+                deliveredRevisions.clear();
+            }
+            for (CacheInvalidationListener<T> reference : references) {
                 reference.onInvalidated();
             }
         }
@@ -174,30 +351,636 @@ public class CommandsDescription {
         @Override
         public String toString() {
             return MoreObjects.toStringHelper(this)
-                    .add("object", object)
+                    .add("object", slot.get())
                     .add("references", references)
                     .toString();
         }
     }
 
+    /**
+     * Derived key memoizing last result together with revisions of source elements it was
+     * computed from
+     */
+    private class DerivedHolder<T> {
+        @Nonnull
+        final CacheKey<T> cacheKey;
+        @Nonnull
+        final ImmutableList<CacheKey<?>> sources;
+        @Nonnull
+        final Derivation<T> derivation;
+        @Nonnull
+        final List<CacheInvalidationListener<T>> references = new CopyOnWriteArrayList<>();
+        @Nullable
+        volatile DerivedValue<T> value;
+        @Nonnull
+        final CacheInvalidationListener<Object> sourceListener = new CacheInvalidationListener<Object>() {
+            @Override
+            public void onChanged(@Nonnull Object object) {
+                onSourceChanged();
+            }
+
+            @Override
+            public void onInvalidated() {
+                onSourceChanged();
+            }
+        };
+
+        private DerivedHolder(@Nonnull CacheKey<T> cacheKey,
+                              @Nonnull ImmutableList<CacheKey<?>> sources,
+                              @Nonnull Derivation<T> derivation) {
+            this.cacheKey = cacheKey;
+            this.sources = sources;
+            this.derivation = derivation;
+        }
+
+        @Nonnull
+        public Optional<T> get() {
+            final Map<CacheKey<?>, Object> objects = Maps.newHashMapWithExpectedSize(sources.size());
+            final long[] revisions = new long[sources.size()];
+            for (int i = 0; i < revisions.length; i++) {
+                final CacheKey<?> source = sources.get(i);
+                final Optional<? extends CacheElement<?>> cacheElement = getCacheElement(source);
+                if (cacheElement.isPresent()) {
+                    objects.put(source, cacheElement.get().object);
+                    revisions[i] = cacheElement.get().revision;
+                } else {
+                    revisions[i] = CacheElement.NO_REVISION;
+                }
+            }
+            final DerivedValue<T> memoized = value;
+            if (memoized != null && Arrays.equals(memoized.revisions, revisions)) {
+                return memoized.object;
+            }
+            final Optional<T> object = checkNotNull(derivation.derive(new Derivation.Sources() {
+                @Nonnull
+                @Override
+                @SuppressWarnings("unchecked")
+                public <S> Optional<S> get(@Nonnull CacheKey<S> source) {
+                    checkArgument(sources.contains(source), "%s is not source of %s", source, cacheKey);
+                    return Optional.fromNullable((S) objects.get(source));
+                }
+            }));
+            value = new DerivedValue<>(revisions, object);
+            return object;
+        }
+
+        private void onSourceChanged() {
+            final DerivedValue<T> previous = value;
+            final Optional<T> object = get();
+            if (previous != null && previous.object.equals(object)) {
+                return;
+            }
+            if (mMetricsEnabled) {
+                mMetrics.onNotified(cacheKey, references.size());
+            }
+            for (CacheInvalidationListener<T> reference : references) {
+                if (object.isPresent()) {
+                    reference.onChanged(object.get());
+                } else {
+                    reference.onInvalidated();
+                }
+            }
+        }
+
+        public synchronized void register(@Nonnull CacheInvalidationListener<T> listener) {
+            if (references.isEmpty()) {
+                for (CacheKey<?> source : sources) {
+                    registerSource(source);
+                }
+            }
+            references.add(listener);
+        }
+
+        public synchronized void unregister(@Nonnull CacheInvalidationListener<T> listener) {
+            checkState(references.remove(listener), "Not registered this listener");
+            if (references.isEmpty()) {
+                for (CacheKey<?> source : sources) {
+                    unregisterSource(source);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <S> void registerSource(@Nonnull CacheKey<S> source) {
+            CommandsDescription.this.register(source, (CacheInvalidationListener<S>) sourceListener);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <S> void unregisterSource(@Nonnull CacheKey<S> source) {
+            CommandsDescription.this.unregister(source, (CacheInvalidationListener<S>) sourceListener);
+        }
+    }
+
+    private static class DerivedValue<T> {
+        @Nonnull
+        final long[] revisions;
+        @Nonnull
+        final Optional<T> object;
+
+        private DerivedValue(@Nonnull long[] revisions, @Nonnull Optional<T> object) {
+            this.revisions = revisions;
+            this.object = object;
+        }
+    }
+
+    /**
+     * Notifications collected while holding key locks and dispatched after releasing them.
+     * Notifications are coalesced so every holder is notified at most once, about its last event.
+     */
+    private class Notifications {
+        @Nonnull
+        private final Map<CacheHolder<?>, Boolean> mInvalidated = Maps.newLinkedHashMap();
+
+        public void changed(@Nonnull CacheHolder<?> cacheHolder) {
+            mInvalidated.put(cacheHolder, false);
+        }
+
+        public void invalidated(@Nonnull CacheHolder<?> cacheHolder) {
+            mInvalidated.put(cacheHolder, true);
+        }
+
+        public void dispatch() {
+            for (Map.Entry<CacheHolder<?>, Boolean> entry : mInvalidated.entrySet()) {
+                dispatch(entry.getKey(), entry.getValue());
+            }
+            mInvalidated.clear();
+        }
+
+        private <T> void dispatch(@Nonnull CacheHolder<T> cacheHolder, boolean invalidated) {
+            if (mMetricsEnabled) {
+                mMetrics.onNotified(cacheHolder.cacheKey, cacheHolder.references.size());
+            }
+            if (invalidated) {
+                cacheHolder.onInvalidated();
+                return;
+            }
+            // Other thread could change object in meantime so we always deliver the latest one
+            final CacheElement<T> cacheElement = cacheHolder.slot.get();
+            if (cacheElement != null) {
+                cacheHolder.onChanged(cacheElement);
+            }
+        }
+    }
+
+    public static class Builder {
+        private long mMaximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+        private long mExpireAfterWriteNanos = DEFAULT_EXPIRE_AFTER_WRITE_NANOS;
+        private int mMaxCommandLogSize = NO_COMMAND_LOG_LIMIT;
+        @Nonnull
+        private final Map<Class<?>, CacheWeigher<?>> mWeighers = Maps.newHashMap();
+        @Nonnull
+        private final Map<Class<?>, CacheCodec<?>> mCodecs = Maps.newHashMap();
+        @Nullable
+        private File mDiskCacheFile;
+        private int mDiskCacheSizeBytes;
+        @Nonnull
+        private CacheMetricsListener mMetricsListener = CacheMetricsAdapter.getEmpty();
+        @Nullable
+        private Ticker mTicker;
+        @Nonnull
+        private Recalculation mRecalculation = Recalculation.EAGER;
+
+        public Builder() {
+        }
+
+        /**
+         * Listener that receives cache statistics, by default statistics are not collected
+         */
+        @Nonnull
+        public Builder metricsListener(@Nonnull CacheMetricsListener metricsListener) {
+            mMetricsListener = checkNotNull(metricsListener);
+            return this;
+        }
+
+        /**
+         * Store objects evicted from memory in memory mapped file. Only objects of classes with
+         * {@link #codec(Class, CacheCodec)} are stored. Objects are restored on the next read and
+         * commands executed in meantime are replayed on them.
+         *
+         * File content is not preserved between processes.
+         */
+        @Nonnull
+        public Builder diskCache(@Nonnull File file, int maxSizeBytes) {
+            checkArgument(maxSizeBytes > 0, "maxSizeBytes should be positive");
+            mDiskCacheFile = checkNotNull(file);
+            mDiskCacheSizeBytes = maxSizeBytes;
+            return this;
+        }
+
+        /**
+         * Codec for objects of given class and its subclasses
+         */
+        @Nonnull
+        public <T> Builder codec(@Nonnull Class<T> type,
+                                 @Nonnull CacheCodec<T> codec) {
+            mCodecs.put(checkNotNull(type), checkNotNull(codec));
+            return this;
+        }
+
+        /**
+         * Budget shared by cached objects and objects pinned by registered listeners.
+         *
+         * If objects pinned by listeners exceed budget all other objects are evicted, but pinned
+         * objects are never dropped.
+         */
+        @Nonnull
+        public Builder maximumWeight(long maximumWeight) {
+            checkArgument(maximumWeight >= 0, "maximumWeight could not be negative");
+            mMaximumWeight = maximumWeight;
+            return this;
+        }
+
+        /**
+         * Weigher for objects of given class and its subclasses. Objects without weigher weigh
+         * {@link #DEFAULT_WEIGHT}.
+         */
+        @Nonnull
+        public <T> Builder weigher(@Nonnull Class<T> type,
+                                   @Nonnull CacheWeigher<? super T> weigher) {
+            mWeighers.put(checkNotNull(type), checkNotNull(weigher));
+            return this;
+        }
+
+        /**
+         * Time source for expiration and write times of cached objects, by default wall clock.
+         *
+         * Write times stored in {@link CommandsDescription#writeSnapshot(File)} are meaningful only for the same
+         * ticker, so use it for tests e.g. with {@link VirtualTime#getTicker()}.
+         */
+        @Nonnull
+        public Builder ticker(@Nonnull Ticker ticker) {
+            mTicker = checkNotNull(ticker);
+            return this;
+        }
+
+        @Nonnull
+        public Builder expireAfterWrite(long duration, @Nonnull TimeUnit unit) {
+            checkArgument(duration >= 0, "duration could not be negative");
+            mExpireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * When commands are replayed, by default {@link Recalculation#EAGER}
+         */
+        @Nonnull
+        public Builder recalculation(@Nonnull Recalculation recalculation) {
+            mRecalculation = checkNotNull(recalculation);
+            return this;
+        }
+
+        /**
+         * @see CommandsDescription#setMaxCommandLogSize(int)
+         */
+        @Nonnull
+        public Builder maxCommandLogSize(int maxCommandLogSize) {
+            checkArgument(maxCommandLogSize == NO_COMMAND_LOG_LIMIT || maxCommandLogSize > 0,
+                    "maxCommandLogSize should be positive or NO_COMMAND_LOG_LIMIT");
+            mMaxCommandLogSize = maxCommandLogSize;
+            return this;
+        }
+
+        @Nonnull
+        public CommandsDescription build() {
+            return new CommandsDescription(this);
+        }
+    }
+
+    /**
+     * When commands are replayed on objects of registered listeners
+     */
+    public enum Recalculation {
+        /**
+         * On every {@link #invalidate(CommandName, Object)}, listeners are notified immediately
+         */
+        EAGER,
+        /**
+         * Only for holders with an active listener, see
+         * {@link #setListenerActive(CacheKey, CacheInvalidationListener, boolean)}. Other holders
+         * are marked dirty and recalculated on read or when any of their listeners gets active.
+         */
+        LAZY
+    }
+
+    public static final int NO_COMMAND_LOG_LIMIT = -1;
+    private static final int DISK_CACHE_SEGMENTS = 4;
+    public static final int DEFAULT_WEIGHT = 1;
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 20;
+    private static final long DEFAULT_EXPIRE_AFTER_WRITE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int MIN_COMPACTION_THRESHOLD = 64;
+    private static final int KEY_LOCK_STRIPES = 64;
+    /**
+     * Unread snapshot and disk records are dropped when they keep more commands in log
+     */
+    private static final int MAX_UNREAD_PINNED_COMMANDS = 1024;
+
+    @Nonnull
+    private final ConcurrentMap<CommandName<?, ?>, Command<?,?>> mCommands = new ConcurrentHashMap<>();
+    @Nonnull
+    private final ConcurrentMap<CommandName<?, ?>, CacheKeySelector<?>> mKeySelectors = new ConcurrentHashMap<>();
+    /**
+     * Commands by version. Every command with version greater or equal to
+     * {@link #mLogStartVersion} and lower than {@link #mVersion} is present in this map.
+     */
+    @Nonnull
+    private final ConcurrentNavigableMap<Integer, CommandToExecute<?, ?>> mToExecute = new ConcurrentSkipListMap<>();
+    @Nonnull
+    private final Object mLogLock = new Object();
+    @Nonnull
+    private final AtomicInteger mLogSize = new AtomicInteger();
+    @Nonnull
+    private final Lock mCompactionLock = new ReentrantLock();
+    /**
+     * Version of next command. Only written while holding {@link #mLogLock}.
+     */
+    private volatile int mVersion = 1;
+    private volatile int mLogStartVersion = 1;
+    private volatile int mCompactionThreshold;
+    private volatile int mMaxCommandLogSize;
+    @Nonnull
+    private final Cache<CacheKey<?>, CacheEntry> mCache;
+    private final long mMaximumWeight;
+    private final long mExpireAfterWriteNanos;
+    @Nonnull
+    private final AtomicLong mCachedWeight = new AtomicLong();
+    @Nonnull
+    private final AtomicLong mAccessTicks = new AtomicLong();
+    @Nonnull
+    private final AtomicLong mPinnedWeight = new AtomicLong();
     @Nonnull
-    private final HashMap<CommandName<?, ?>, Command<?,?>> mCommands = Maps.newHashMap();
+    private final ImmutableMap<Class<?>, CacheWeigher<?>> mWeighers;
     @Nonnull
-    private final List<CommandToExecute<?, ?>> mToExecute = Lists.newArrayList();
+    private final ConcurrentMap<Class<?>, CacheWeigher<?>> mResolvedWeighers = new ConcurrentHashMap<>();
     @Nonnull
-    private Cache<Object, CacheElement<?>> mCache = CacheBuilder.newBuilder()
-            .maximumSize(20)
-            .expireAfterWrite(1, TimeUnit.MINUTES)
-            .build();
+    private final ImmutableMap<Class<?>, CacheCodec<?>> mCodecs;
     @Nonnull
-    private final Map<CacheKey<?>, CacheHolder<?>> mHardReferenceStore = Maps.newHashMap();
+    private final ImmutableMap<String, CacheCodec<?>> mCodecsByName;
+    @Nullable
+    private final MappedSegmentFile mDiskCache;
+    @Nullable
+    private volatile MappedSnapshot mSnapshot;
+    /**
+     * Version assigned to objects restored from {@link #mSnapshot}
+     */
+    private volatile int mSnapshotVersion;
+    /**
+     * Time of {@link #restoreSnapshot(File)}, all snapshot records are older
+     */
+    private volatile long mSnapshotRestoreTime;
+    @Nonnull
+    private final ConcurrentMap<CacheKey<?>, CacheHolder<?>> mHardReferenceStore = new ConcurrentHashMap<>();
+    /**
+     * Keys from {@link #mHardReferenceStore} that hold a cache element declaring given command
+     */
+    @Nonnull
+    private final ConcurrentMap<CommandName<?, ?>, Set<CacheKey<?>>> mCommandIndex = new ConcurrentHashMap<>();
+    @Nonnull
+    private final ConcurrentMap<CacheKey<?>, DerivedHolder<?>> mDerivedHolders = new ConcurrentHashMap<>();
+    /**
+     * Serializes writers of the same key, readers never take those locks
+     */
+    @Nonnull
+    private final Striped<Lock> mKeyLocks = Striped.lock(KEY_LOCK_STRIPES);
+    @Nonnull
+    private final CacheMetricsListener mMetrics;
+    /**
+     * False for empty listener so nothing is measured
+     */
+    private final boolean mMetricsEnabled;
+    /**
+     * Null for wall clock
+     */
+    @Nullable
+    private final Ticker mTicker;
+    @Nonnull
+    private final Recalculation mRecalculation;
+    @Nonnull
+    private final List<CacheRemovalListener> mRemovalListeners = new CopyOnWriteArrayList<>();
 
     public CommandsDescription() {
+        this(new Builder());
+    }
+
+    private CommandsDescription(@Nonnull Builder builder) {
+        mMetrics = builder.mMetricsListener;
+        mMetricsEnabled = mMetrics != CacheMetricsAdapter.getEmpty();
+        mTicker = builder.mTicker;
+        mRecalculation = builder.mRecalculation;
+        mMaximumWeight = builder.mMaximumWeight;
+        mExpireAfterWriteNanos = builder.mExpireAfterWriteNanos;
+        mMaxCommandLogSize = builder.mMaxCommandLogSize;
+        mWeighers = ImmutableMap.copyOf(builder.mWeighers);
+        mCodecs = ImmutableMap.copyOf(builder.mCodecs);
+        final ImmutableMap.Builder<String, CacheCodec<?>> codecsByName = ImmutableMap.builder();
+        for (Map.Entry<Class<?>, CacheCodec<?>> entry : mCodecs.entrySet()) {
+            codecsByName.put(entry.getKey().getName(), entry.getValue());
+        }
+        mCodecsByName = codecsByName.build();
+        if (builder.mDiskCacheFile != null) {
+            try {
+                mDiskCache = new MappedSegmentFile(builder.mDiskCacheFile,
+                        builder.mDiskCacheSizeBytes, DISK_CACHE_SEGMENTS);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map disk cache file: " + builder.mDiskCacheFile, e);
+            }
+        } else {
+            mDiskCache = null;
+        }
+        mCache = CacheBuilder.newBuilder()
+                .ticker(mTicker == null ? Ticker.systemTicker() : mTicker)
+                .maximumWeight(builder.mMaximumWeight)
+                .weigher(new Weigher<CacheKey<?>, CacheEntry>() {
+                    @Override
+                    public int weigh(@Nonnull CacheKey<?> key, @Nonnull CacheEntry value) {
+                        return value.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<CacheKey<?>, CacheEntry>() {
+                    @Override
+                    public void onRemoval(@Nonnull RemovalNotification<CacheKey<?>, CacheEntry> notification) {
+                        final CacheEntry cacheEntry = notification.getValue();
+                        if (cacheEntry != null) {
+                            mCachedWeight.addAndGet(-cacheEntry.weight);
+                            final CacheKey<?> cacheKey = notification.getKey();
+                            if (mMetricsEnabled && notification.wasEvicted() && cacheKey != null) {
+                                mMetrics.onEviction(cacheKey);
+                            }
+                            if (cacheKey == null) {
+                                return;
+                            }
+                            final RemovalCause cause = notification.getCause();
+                            if (cause == RemovalCause.SIZE && writeToDisk(cacheKey, cacheEntry)) {
+                                return;
+                            }
+                            // Explicit removals are reported by callers
+                            if (notification.wasEvicted()) {
+                                notifyRemoved(cacheKey);
+                            }
+                        }
+                    }
+                })
+                .expireAfterWrite(builder.mExpireAfterWriteNanos, TimeUnit.NANOSECONDS)
+                .build();
+        mCompactionThreshold = mMaxCommandLogSize == NO_COMMAND_LOG_LIMIT
+                ? MIN_COMPACTION_THRESHOLD
+                : Math.min(MIN_COMPACTION_THRESHOLD, mMaxCommandLogSize + 1);
+    }
+
+    /**
+     * @return estimated weight of cached objects including objects pinned by registered listeners
+     */
+    public long getEstimatedRetainedSize() {
+        return mCachedWeight.get() + mPinnedWeight.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> int weigh(@Nonnull T object) {
+        final Class<?> type = object.getClass();
+        CacheWeigher<? super T> weigher = (CacheWeigher<? super T>) mResolvedWeighers.get(type);
+        if (weigher == null) {
+            weigher = (CacheWeigher<? super T>) resolveWeigher(type);
+            mResolvedWeighers.put(type, weigher);
+        }
+        final int weight = weigher.weigh(object);
+        checkState(weight >= 0, "Weight could not be negative");
+        return weight;
+    }
+
+    @Nonnull
+    private CacheWeigher<?> resolveWeigher(@Nonnull Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            final CacheWeigher<?> weigher = mWeighers.get(current);
+            if (weigher != null) {
+                return weigher;
+            }
+        }
+        for (Map.Entry<Class<?>, CacheWeigher<?>> entry : mWeighers.entrySet()) {
+            if (entry.getKey().isAssignableFrom(type)) {
+                return entry.getValue();
+            }
+        }
+        return DEFAULT_WEIGHER;
+    }
+
+    private static final CacheWeigher<Object> DEFAULT_WEIGHER = new CacheWeigher<Object>() {
+        @Override
+        public int weigh(@Nonnull Object object) {
+            return DEFAULT_WEIGHT;
+        }
+    };
+
+    /**
+     * Put slot to LRU cache, should be called while holding key lock. Weight of not pinned slot
+     * is computed only here, commands replayed later do not change it.
+     */
+    private <T> void cacheSlot(@Nonnull CacheKey<T> cacheKey,
+                               @Nonnull Slot<T> slot,
+                               boolean pinned) {
+        final CacheElement<T> cacheElement = slot.get();
+        if (cacheElement == null) {
+            return;
+        }
+        final int weight = pinned ? 0 : weigh(cacheElement.object);
+        mCachedWeight.addAndGet(weight);
+        mCache.put(cacheKey, new CacheEntry(slot, weight, mAccessTicks.incrementAndGet()));
+        if (weight > 0) {
+            trimToMaximumWeight();
+        }
+    }
+
+    /**
+     * Account weight of holder snapshot in pinned weight
+     */
+    private void updatePinnedWeight(@Nonnull CacheHolder<?> cacheHolder,
+                                    @Nullable CacheElement<?> cacheElement) {
+        final int weight = cacheElement == null ? 0 : weigh(cacheElement.object);
+        final int previous = cacheHolder.weight.getAndSet(weight);
+        if (weight != previous) {
+            mPinnedWeight.addAndGet(weight - previous);
+            if (weight > previous) {
+                trimToMaximumWeight();
+            }
+        }
+    }
+
+    /**
+     * LRU cache evicts its own entries over budget, but pinned weight is not visible to it so we
+     * evict not pinned entries when both tiers exceed budget.
+     */
+    private void trimToMaximumWeight() {
+        if (getEstimatedRetainedSize() <= mMaximumWeight) {
+            return;
+        }
+        final List<Map.Entry<CacheKey<?>, CacheEntry>> entries = Lists.newArrayList();
+        for (Map.Entry<CacheKey<?>, CacheEntry> entry : mCache.asMap().entrySet()) {
+            if (entry.getValue().weight > 0) {
+                entries.add(Maps.<CacheKey<?>, CacheEntry>immutableEntry(entry.getKey(), entry.getValue()));
+            }
+        }
+        // Least recently used first
+        Collections.sort(entries, new Comparator<Map.Entry<CacheKey<?>, CacheEntry>>() {
+            @Override
+            public int compare(Map.Entry<CacheKey<?>, CacheEntry> lhs,
+                               Map.Entry<CacheKey<?>, CacheEntry> rhs) {
+                return Long.compare(lhs.getValue().accessTick, rhs.getValue().accessTick);
+            }
+        });
+        for (Map.Entry<CacheKey<?>, CacheEntry> entry : entries) {
+            if (getEstimatedRetainedSize() <= mMaximumWeight) {
+                return;
+            }
+            if (mCache.asMap().remove(entry.getKey(), entry.getValue())) {
+                // Guava reports explicit removal, so it is not counted by removal listener
+                if (mMetricsEnabled) {
+                    mMetrics.onEviction(entry.getKey());
+                }
+                if (!writeToDisk(entry.getKey(), entry.getValue())) {
+                    notifyRemoved(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Limit number of commands kept for replaying. If limit is exceeded the oldest commands are
+     * dropped and cache elements that could require them are invalidated.
+     *
+     * @param maxCommandLogSize maximum number of kept commands or {@link #NO_COMMAND_LOG_LIMIT}
+     */
+    public void setMaxCommandLogSize(int maxCommandLogSize) {
+        checkArgument(maxCommandLogSize == NO_COMMAND_LOG_LIMIT || maxCommandLogSize > 0,
+                "maxCommandLogSize should be positive or NO_COMMAND_LOG_LIMIT");
+        mMaxCommandLogSize = maxCommandLogSize;
+        compactCommandLog();
     }
 
     public <T, K> void addCommand(@Nonnull CommandName<T, K> commandName, Command<T, K> command) {
         checkNotNull(command);
         mCommands.put(commandName, command);
+        mKeySelectors.remove(commandName);
+    }
+
+    /**
+     * Add command that is applied only to cache elements stored under keys selected by
+     * keySelector for given parameter.
+     */
+    public <T, K> void addCommand(@Nonnull CommandName<T, K> commandName,
+                                  @Nonnull Command<T, K> command,
+                                  @Nonnull CacheKeySelector<K> keySelector) {
+        checkNotNull(command);
+        checkNotNull(keySelector);
+        mCommands.put(commandName, command);
+        mKeySelectors.put(commandName, keySelector);
+    }
+
+    @Nonnull
+    private <K> CacheKeySelector.Selection selectKeys(@Nonnull CommandName<?, K> commandName,
+                                                      @Nullable K parameter) {
+        @SuppressWarnings("unchecked")
+        final CacheKeySelector<K> keySelector = (CacheKeySelector<K>) mKeySelectors.get(commandName);
+        return keySelector == null
+                ? CacheKeySelector.Selection.all()
+                : checkNotNull(keySelector.select(parameter));
     }
 
     public <T, K> void invalidate(@Nonnull CommandName<T, K> commandName, @Nullable K parameter) {
@@ -205,21 +988,166 @@ public class CommandsDescription {
         final Command<?, ?> command = mCommands.get(commandName);
         checkState(command != null, "You did not defined command: " + commandName);
 
-        mToExecute.add(new CommandToExecute<>(mVersion++, commandName, parameter));
-
-        for (Map.Entry<CacheKey<?>, CacheHolder<?>> cacheKeyCacheHolderEntry : mHardReferenceStore.entrySet()) {
-            final CacheHolder<?> cacheHolder = cacheKeyCacheHolderEntry.getValue();
-            if (cacheHolder.object.isPresent()) {
-                final CacheElement<?> cacheElement = cacheHolder.object.get();
-                //noinspection SuspiciousMethodCalls
-                if (cacheElement.commands.contains(commandName)) {
-                    //noinspection unchecked
-                    final CacheKey<T> key = (CacheKey<T>) cacheKeyCacheHolderEntry.getKey();
-                    //noinspection unchecked
-                    recalculate(key, (CacheElement<T>) cacheElement);
+        final Set<CacheKey<?>> affectedKeys = Sets.newLinkedHashSet();
+        appendCommand(commandName, parameter, affectedKeys);
+        compactCommandLogIfNeeded();
+
+        final Notifications notifications = new Notifications();
+        recalculateAffected(affectedKeys, notifications);
+        notifications.dispatch();
+    }
+
+    private void recalculateAffected(@Nonnull Set<CacheKey<?>> affectedKeys,
+                                     @Nonnull Notifications notifications) {
+        for (CacheKey<?> cacheKey : affectedKeys) {
+            if (mRecalculation == Recalculation.LAZY) {
+                final CacheHolder<?> cacheHolder = getCacheHolder(cacheKey);
+                if (cacheHolder != null) {
+                    // Mark before checking, so listener activated in meantime sees dirty flag
+                    cacheHolder.dirty = true;
+                    if (!cacheHolder.isActive()) {
+                        continue;
+                    }
+                }
+            }
+            recalculate(cacheKey, notifications);
+        }
+    }
+
+    /**
+     * Append command to log and collect keys that should be recalculated
+     */
+    private <K> void appendCommand(@Nonnull CommandName<?, K> commandName,
+                                   @Nullable K parameter,
+                                   @Nonnull Set<CacheKey<?>> affectedKeys) {
+        final CacheKeySelector.Selection selection = selectKeys(commandName, parameter);
+        synchronized (mLogLock) {
+            final int version = mVersion;
+            mToExecute.put(version, new CommandToExecute<>(version, commandName, parameter, selection));
+            mVersion = version + 1;
+        }
+        final int logSize = mLogSize.incrementAndGet();
+        if (mMetricsEnabled) {
+            mMetrics.onCommandAdded(commandName, logSize);
+        }
+        Iterables.addAll(affectedKeys, affectedKeys(commandName, selection));
+    }
+
+    private void compactCommandLogIfNeeded() {
+        if (mLogSize.get() >= mCompactionThreshold) {
+            compactCommandLog();
+        }
+    }
+
+    /**
+     * Start transaction that groups many {@link #invalidate(CommandName, Object)} and
+     * {@link #putCache(CacheKey, Object, List)} calls. Operations are applied on
+     * {@link Transaction#commit()}, every affected key is recalculated once and every listener
+     * receives at most one notification.
+     */
+    @Nonnull
+    public Transaction beginTransaction() {
+        return new Transaction();
+    }
+
+    /**
+     * Operations of single transaction, should be used from one thread.
+     *
+     * @see #beginTransaction()
+     */
+    public class Transaction {
+        @Nonnull
+        private final List<TransactionOperation> mOperations = Lists.newArrayList();
+        private boolean mCommitted = false;
+
+        private Transaction() {
+        }
+
+        @Nonnull
+        public <T, K> Transaction invalidate(@Nonnull final CommandName<T, K> commandName,
+                                             @Nullable final K parameter) {
+            checkNotNull(commandName);
+            checkState(mCommands.containsKey(commandName), "You did not defined command: " + commandName);
+            checkState(!mCommitted, "Transaction already committed");
+            mOperations.add(new TransactionOperation() {
+                @Override
+                public void apply(@Nonnull Set<CacheKey<?>> affectedKeys,
+                                  @Nonnull Notifications notifications) {
+                    appendCommand(commandName, parameter, affectedKeys);
+                }
+            });
+            return this;
+        }
+
+        @Nonnull
+        public <T> Transaction putCache(@Nonnull final CacheKey<T> cacheKey,
+                                        @Nonnull final T object,
+                                        @Nonnull final List<CommandName<T, ?>> commands) {
+            checkNotNull(cacheKey);
+            checkNotNull(object);
+            checkNotNull(commands);
+            checkState(!mCommitted, "Transaction already committed");
+            mOperations.add(new TransactionOperation() {
+                @Override
+                public void apply(@Nonnull Set<CacheKey<?>> affectedKeys,
+                                  @Nonnull Notifications notifications) {
+                    CommandsDescription.this.putCache(cacheKey, object, commands, null, null, notifications);
+                    // Commands from later operations will be replayed on this object
+                    affectedKeys.add(cacheKey);
                 }
+            });
+            return this;
+        }
+
+        public void commit() {
+            checkState(!mCommitted, "Transaction already committed");
+            mCommitted = true;
+
+            final Set<CacheKey<?>> affectedKeys = Sets.newLinkedHashSet();
+            final Notifications notifications = new Notifications();
+            for (TransactionOperation operation : mOperations) {
+                operation.apply(affectedKeys, notifications);
             }
+            compactCommandLogIfNeeded();
+            recalculateAffected(affectedKeys, notifications);
+            notifications.dispatch();
+        }
+    }
+
+    private static interface TransactionOperation {
+        void apply(@Nonnull Set<CacheKey<?>> affectedKeys, @Nonnull Notifications notifications);
+    }
+
+    /**
+     * Add key which object is computed from objects of source keys. Result is memoized and
+     * computed again only when any of source objects has changed.
+     *
+     * Derived key could be read with {@link #getCacheIfPresent(CacheKey)} and observed with
+     * {@link #register(CacheKey, CacheInvalidationListener)}, listeners are notified only if
+     * derived object is not equal to previous one. While derived key is observed, its sources are
+     * registered too.
+     */
+    public <T> void addDerived(@Nonnull CacheKey<T> cacheKey,
+                               @Nonnull List<? extends CacheKey<?>> sources,
+                               @Nonnull Derivation<T> derivation) {
+        checkNotNull(cacheKey);
+        checkNotNull(derivation);
+        final ImmutableList<CacheKey<?>> sourceKeys = ImmutableList.copyOf(sources);
+        checkArgument(!sourceKeys.isEmpty(), "Derived key should have sources");
+        for (CacheKey<?> source : sourceKeys) {
+            checkArgument(!mDerivedHolders.containsKey(source), "Source %s could not be derived", source);
         }
+        checkArgument(!sourceKeys.contains(cacheKey), "Derived key could not be its own source");
+        checkState(getCacheHolder(cacheKey) == null, "Key %s is already registered", cacheKey);
+        final DerivedHolder<?> previous = mDerivedHolders.putIfAbsent(cacheKey,
+                new DerivedHolder<>(cacheKey, sourceKeys, derivation));
+        checkState(previous == null, "Key %s is already derived", cacheKey);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> DerivedHolder<T> getDerivedHolder(@Nonnull CacheKey<T> cacheKey) {
+        return (DerivedHolder<T>) mDerivedHolders.get(cacheKey);
     }
 
     public <T> void register(@Nonnull CacheKey<T> cacheKey,
@@ -227,8 +1155,28 @@ public class CommandsDescription {
         checkNotNull(cacheKey);
         checkNotNull(listener);
 
-        final CacheHolder<T> cacheHolder = getCacheHolderOrCreate(cacheKey);
-        cacheHolder.references.add(listener);
+        final DerivedHolder<T> derivedHolder = getDerivedHolder(cacheKey);
+        if (derivedHolder != null) {
+            derivedHolder.register(listener);
+            return;
+        }
+
+        final Notifications notifications = new Notifications();
+        final Lock lock = lockKey(cacheKey);
+        try {
+            final CacheHolder<T> cacheHolder = getCacheHolderOrCreate(cacheKey, notifications);
+            cacheHolder.references.add(listener);
+        } finally {
+            lock.unlock();
+        }
+        notifications.dispatch();
+    }
+
+    @Nonnull
+    private Lock lockKey(@Nonnull CacheKey<?> cacheKey) {
+        final Lock lock = mKeyLocks.get(cacheKey);
+        lock.lock();
+        return lock;
     }
 
     @Nonnull
@@ -254,99 +1202,686 @@ public class CommandsDescription {
         return command.apply(commandToExecute.parameter, object);
     }
 
+    /**
+     * @return end (exclusive) of consecutive commands of the same {@link BatchCommand} starting
+     * at start
+     */
+    private int batchEnd(@Nonnull List<? extends CommandToExecute<?, ?>> commandsToExecute, int start) {
+        final CommandToExecute<?, ?> first = commandsToExecute.get(start);
+        int end = start + 1;
+        if (!(mCommands.get(first.commandName) instanceof BatchCommand)) {
+            return end;
+        }
+        while (end < commandsToExecute.size()
+                && first.commandName.equals(commandsToExecute.get(end).commandName)) {
+            end++;
+        }
+        return end;
+    }
+
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    private <T, K> Command.UpdateResult<T> executeBatchCommand(
+            @Nonnull T object,
+            @Nonnull List<CommandToExecute<T, ?>> commandsToExecute) {
+        final List<K> parameters = Lists.newArrayListWithCapacity(commandsToExecute.size());
+        for (CommandToExecute<T, ?> commandToExecute : commandsToExecute) {
+            parameters.add(((CommandToExecute<T, K>) commandToExecute).parameter);
+        }
+        final BatchCommand<T, K> command =
+                (BatchCommand<T, K>) getCommand((CommandToExecute<T, K>) commandsToExecute.get(0));
+        return checkNotNull(command.applyAll(parameters, object));
+    }
+
+    /**
+     * Should be called while holding key lock
+     */
     @Nonnull
-    private <T> CacheHolder<T> getCacheHolderOrCreate(@Nonnull CacheKey<T> cacheKey) {
+    private <T> CacheHolder<T> getCacheHolderOrCreate(@Nonnull CacheKey<T> cacheKey,
+                                                      @Nonnull Notifications notifications) {
         checkNotNull(cacheKey);
         CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
         if (cacheHolder == null) {
-            final Optional<CacheElement<T>> cacheIfPresent = getCacheElementIfPresent(cacheKey);
-            cacheHolder = new CacheHolder<>(cacheIfPresent);
+            recalculate(cacheKey, notifications);
+            final Slot<T> cachedSlot = getCachedSlot(cacheKey);
+            cacheHolder = new CacheHolder<>(cacheKey, cachedSlot == null ? new Slot<T>(null) : cachedSlot);
             mHardReferenceStore.put(cacheKey, cacheHolder);
+            if (mMetricsEnabled) {
+                mMetrics.onHoldersChanged(mHardReferenceStore.size());
+            }
+            updateIndex(cacheKey, cacheHolder);
+            // From now slot weight is accounted as pinned
+            cacheSlot(cacheKey, cacheHolder.slot, true);
+            updatePinnedWeight(cacheHolder, cacheHolder.slot.get());
+            // Commands logged before key was indexed did not recalculate it. Nobody has
+            // listened to this holder yet, so there is nothing to notify.
+            recalculate(cacheKey, new Notifications());
         }
         return cacheHolder;
     }
 
+    @Nonnull
+    private Iterable<CacheKey<?>> affectedKeys(@Nonnull CommandName<?, ?> commandName,
+                                               @Nonnull final CacheKeySelector.Selection selection) {
+        final Set<CacheKey<?>> indexedKeys = mCommandIndex.get(commandName);
+        if (indexedKeys == null) {
+            return ImmutableSet.of();
+        }
+        final ImmutableSet<CacheKey<?>> selectedKeys = selection.getKeys();
+        if (selectedKeys != null) {
+            return Sets.filter(selectedKeys, new Predicate<CacheKey<?>>() {
+                @Override
+                public boolean apply(@Nullable CacheKey<?> input) {
+                    return indexedKeys.contains(input);
+                }
+            });
+        }
+        return Sets.filter(indexedKeys, new Predicate<CacheKey<?>>() {
+            @Override
+            public boolean apply(@Nullable CacheKey<?> input) {
+                return input != null && selection.matches(input);
+            }
+        });
+    }
+
+    /**
+     * Index holder by commands of its current snapshot, should be called while holding key lock
+     */
+    private <T> void updateIndex(@Nonnull CacheKey<T> cacheKey,
+                                 @Nonnull CacheHolder<T> cacheHolder) {
+        removeFromIndex(cacheKey, cacheHolder);
+        final CacheElement<T> cacheElement = cacheHolder.slot.get();
+        if (cacheElement != null) {
+            for (CommandName<T, ?> commandName : cacheElement.commands) {
+                getIndexedKeys(commandName).add(cacheKey);
+            }
+            cacheHolder.indexedCommands = cacheElement.commands;
+        }
+    }
+
+    private void removeFromIndex(@Nonnull CacheKey<?> cacheKey,
+                                 @Nonnull CacheHolder<?> cacheHolder) {
+        for (CommandName<?, ?> commandName : cacheHolder.indexedCommands) {
+            getIndexedKeys(commandName).remove(cacheKey);
+        }
+        cacheHolder.indexedCommands = ImmutableList.of();
+    }
+
+    @Nonnull
+    private Set<CacheKey<?>> getIndexedKeys(@Nonnull CommandName<?, ?> commandName) {
+        final Set<CacheKey<?>> keys = mCommandIndex.get(commandName);
+        if (keys != null) {
+            return keys;
+        }
+        final Set<CacheKey<?>> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<CacheKey<?>, Boolean>());
+        final Set<CacheKey<?>> previous = mCommandIndex.putIfAbsent(commandName, newKeys);
+        return previous == null ? newKeys : previous;
+    }
+
     @Nonnull
     public <T> Optional<CacheElement<T>> getCacheElementIfPresent(CacheKey<T> cacheKey) {
+        final Optional<CacheElement<T>> cacheElement = getCacheElement(cacheKey);
+        if (mMetricsEnabled) {
+            if (cacheElement.isPresent()) {
+                mMetrics.onHit(cacheKey);
+            } else {
+                mMetrics.onMiss(cacheKey);
+            }
+        }
+        return cacheElement;
+    }
+
+    /**
+     * Same as {@link #getCacheElementIfPresent(CacheKey)} but not counted in metrics
+     */
+    @Nonnull
+    private <T> Optional<CacheElement<T>> getCacheElement(@Nonnull CacheKey<T> cacheKey) {
         checkNotNull(cacheKey);
-        final Optional<CacheElement<T>> optCacheElement;
+        final Notifications notifications = new Notifications();
+        final Optional<CacheElement<T>> cacheElement = recalculate(cacheKey, notifications);
+        notifications.dispatch();
+        return cacheElement;
+    }
+
+    @Nullable
+    private <T> Slot<T> getSlot(@Nonnull CacheKey<T> cacheKey) {
         final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
-        if (cacheHolder == null) {
-            optCacheElement = Optional.fromNullable(getCacheElement(cacheKey));
-        } else {
-            optCacheElement = cacheHolder.object;
+        if (cacheHolder != null) {
+            return cacheHolder.slot;
+        }
+        final Slot<T> cachedSlot = getCachedSlot(cacheKey);
+        return cachedSlot != null ? cachedSlot : readFromDisk(cacheKey);
+    }
+
+    /**
+     * @return true if element is kept on disk
+     */
+    private boolean writeToDisk(@Nonnull CacheKey<?> cacheKey, @Nonnull CacheEntry cacheEntry) {
+        final CacheElement<?> cacheElement = cacheEntry.slot.get();
+        if (mDiskCache == null || cacheEntry.weight == 0 || cacheElement == null) {
+            return false;
+        }
+        final byte[] bytes = encode(cacheElement);
+        if (bytes == null) {
+            return false;
+        }
+        mDiskCache.put(cacheKey, cacheElement.version, cacheElement.writeTime, bytes);
+        return true;
+    }
+
+    /**
+     * Drop expired objects now instead of on following cache operations, so
+     * {@link CacheRemovalListener}s are notified
+     */
+    public void cleanUp() {
+        mCache.cleanUp();
+    }
+
+    /**
+     * Register listener notified when object is not retained anymore
+     */
+    public void addRemovalListener(@Nonnull CacheRemovalListener listener) {
+        mRemovalListeners.add(checkNotNull(listener));
+    }
+
+    /**
+     * Notify removal listeners unless key is still cached or registered
+     */
+    private void notifyRemoved(@Nonnull CacheKey<?> cacheKey) {
+        if (mRemovalListeners.isEmpty()
+                || getCacheHolder(cacheKey) != null
+                || mCache.asMap().containsKey(cacheKey)) {
+            return;
+        }
+        for (CacheRemovalListener listener : mRemovalListeners) {
+            listener.onRemoved(cacheKey);
+        }
+    }
+
+    /**
+     * Move element from disk to LRU cache
+     */
+    @Nullable
+    private <T> Slot<T> readFromDisk(@Nonnull CacheKey<T> cacheKey) {
+        if (mDiskCache == null && mSnapshot == null) {
+            return null;
+        }
+        final Lock lock = lockKey(cacheKey);
+        try {
+            final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+            if (cacheHolder != null) {
+                return cacheHolder.slot;
+            }
+            final Slot<T> cachedSlot = getCachedSlot(cacheKey);
+            if (cachedSlot != null) {
+                return cachedSlot;
+            }
+            final CacheElement<T> cacheElement = readElementFromDisk(cacheKey);
+            if (cacheElement == null) {
+                return null;
+            }
+            final Slot<T> slot = new Slot<>(cacheElement);
+            cacheSlot(cacheKey, slot, false);
+            return slot;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return optCacheElement.isPresent() ? recalculate(cacheKey, optCacheElement.get()) : optCacheElement;
+    private boolean isExpired(long writeTime) {
+        return TimeUnit.MILLISECONDS.toNanos(currentTimeMillis() - writeTime) >= mExpireAfterWriteNanos;
+    }
+
+    @Nullable
+    private <T> CacheElement<T> readElementFromDisk(@Nonnull CacheKey<T> cacheKey) {
+        if (mDiskCache != null) {
+            final byte[] bytes = mDiskCache.remove(cacheKey);
+            final CacheElement<T> cacheElement = bytes == null ? null : this.<T>decode(bytes);
+            if (cacheElement != null && !isExpired(cacheElement.writeTime)) {
+                return cacheElement;
+            }
+        }
+        final MappedSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            final byte[] bytes = snapshot.remove(cacheKey);
+            final CacheElement<T> cacheElement = bytes == null ? null : this.<T>decode(bytes);
+            if (cacheElement != null && !isExpired(cacheElement.writeTime)) {
+                // Versions from other process are meaningless
+                return new CacheElement<>(mSnapshotVersion, cacheElement.object, cacheElement.commands,
+                        cacheElement.writeTime);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write objects currently kept in memory to file so they could be restored in other process
+     * with {@link #restoreSnapshot(File)}. Only objects of classes with
+     * {@link Builder#codec(Class, CacheCodec)} are written.
+     */
+    public void writeSnapshot(@Nonnull File file) throws IOException {
+        checkNotNull(file);
+        final Set<CacheKey<?>> cacheKeys = Sets.newHashSet();
+        cacheKeys.addAll(mCache.asMap().keySet());
+        cacheKeys.addAll(mHardReferenceStore.keySet());
+
+        final Map<CacheKey<?>, byte[]> records = Maps.newHashMap();
+        for (CacheKey<?> cacheKey : cacheKeys) {
+            // Listeners are not notified, writing snapshot could be done on any thread
+            final Optional<? extends CacheElement<?>> cacheElement = peekCacheElement(cacheKey);
+            if (cacheElement.isPresent()) {
+                final byte[] bytes = encode(cacheElement.get());
+                if (bytes != null) {
+                    records.put(cacheKey, bytes);
+                }
+            }
+        }
+        MappedSnapshot.write(file, records);
+    }
+
+    /**
+     * Restore objects written by {@link #writeSnapshot(File)}. Only index of snapshot is read,
+     * objects are decoded when they are requested for the first time. Objects in memory take
+     * precedence over restored ones.
+     */
+    public void restoreSnapshot(@Nonnull File file) throws IOException {
+        final MappedSnapshot snapshot = MappedSnapshot.open(file);
+        mSnapshotVersion = mVersion;
+        mSnapshotRestoreTime = currentTimeMillis();
+        mSnapshot = snapshot;
     }
 
     @Nullable
     @SuppressWarnings("unchecked")
-    private <T> CacheElement<T> getCacheElement(@Nonnull CacheKey<T> cacheKey) {
-        checkNotNull(cacheKey);
-        return (CacheElement<T>) mCache.getIfPresent(cacheKey);
+    private <T> byte[] encode(@Nonnull CacheElement<T> cacheElement) {
+        Class<?> type = cacheElement.object.getClass();
+        while (type != null && !mCodecs.containsKey(type)) {
+            type = type.getSuperclass();
+        }
+        if (type == null) {
+            return null;
+        }
+        final CacheCodec<T> codec = (CacheCodec<T>) mCodecs.get(type);
+        final ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        output.writeInt(cacheElement.version);
+        output.writeLong(cacheElement.writeTime);
+        output.writeInt(cacheElement.commands.size());
+        for (CommandName<T, ?> commandName : cacheElement.commands) {
+            output.writeUTF(commandName.getName());
+        }
+        output.writeUTF(type.getName());
+        try {
+            codec.encode(cacheElement.object, output);
+        } catch (IOException e) {
+            return null;
+        }
+        return output.toByteArray();
     }
 
-    @Nonnull
-    private <T> Optional<CacheElement<T>> recalculate(CacheKey<T> cacheKey, CacheElement<T> cacheElement) {
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> CacheElement<T> decode(@Nonnull byte[] bytes) {
+        final ByteArrayDataInput input = ByteStreams.newDataInput(bytes);
+        try {
+            final int version = input.readInt();
+            final long writeTime = input.readLong();
+            final int commandsCount = input.readInt();
+            final ImmutableList.Builder<CommandName<T, ?>> commands = ImmutableList.builder();
+            for (int i = 0; i < commandsCount; i++) {
+                commands.add(CommandName.<T, Object>of(input.readUTF()));
+            }
+            final CacheCodec<T> codec = (CacheCodec<T>) mCodecsByName.get(input.readUTF());
+            if (codec == null) {
+                return null;
+            }
+            return new CacheElement<>(version, codec.decode(input), commands.build(), writeTime);
+        } catch (IOException | RuntimeException e) {
+            // Corrupted or written by not compatible codec
+            return null;
+        }
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> Slot<T> getCachedSlot(@Nonnull CacheKey<T> cacheKey) {
         checkNotNull(cacheKey);
-        checkNotNull(cacheElement);
-        final ImmutableList<CommandToExecute<T, ?>> commandsToExecutes = getCommandsToExecute(cacheElement);
+        final CacheEntry cacheEntry = mCache.getIfPresent(cacheKey);
+        if (cacheEntry == null) {
+            return null;
+        }
+        cacheEntry.accessTick = mAccessTicks.incrementAndGet();
+        return (Slot<T>) cacheEntry.slot;
+    }
 
+    private void removeCachedSlot(@Nonnull CacheKey<?> cacheKey, @Nonnull Slot<?> slot) {
+        final CacheEntry cacheEntry = mCache.getIfPresent(cacheKey);
+        if (cacheEntry != null && cacheEntry.slot == slot
+                && mCache.asMap().remove(cacheKey, cacheEntry)) {
+            notifyRemoved(cacheKey);
+        }
+    }
+
+    /**
+     * Apply logged commands to element without publishing result, so nobody is notified
+     *
+     * @return element with the same revision if commands did not change object, null if element
+     * should be invalidated
+     */
+    @Nullable
+    private <T> CacheElement<T> replay(@Nonnull CacheKey<T> cacheKey,
+                                       @Nonnull CacheElement<T> cacheElement,
+                                       int upToVersion) {
+        final ImmutableList<CommandToExecute<T, ?>> commandsToExecutes =
+                getCommandsToExecute(cacheKey, cacheElement, upToVersion);
+        // Log could be compacted while we were reading it
+        boolean invalidate = cacheElement.version < mLogStartVersion;
         boolean hasChanged = false;
+        ChangeDelta delta = ChangeDelta.EMPTY;
+        final long startNanos = mMetricsEnabled ? System.nanoTime() : 0L;
 
         T object = cacheElement.object;
-        for (CommandToExecute<T, ?> commandToExecute : commandsToExecutes) {
-            final Command.UpdateResult<T> result = executeCommand(object, commandToExecute);
+        for (int start = 0; start < commandsToExecutes.size() && !invalidate; ) {
+            final int end = batchEnd(commandsToExecutes, start);
+            final Command.UpdateResult<T> result = end - start == 1
+                    ? executeCommand(object, commandsToExecutes.get(start))
+                    : executeBatchCommand(object, commandsToExecutes.subList(start, end));
             if (result.isInvalidate()) {
-
-                final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
-                if (cacheHolder != null) {
-                    cacheHolder.object = Optional.absent();
-                }
-                mCache.invalidate(cacheKey);
-
-                if (cacheHolder != null) {
-                    cacheHolder.onInvalidated();
-                }
-                return Optional.absent();
+                invalidate = true;
             } else if (result.isUpdate()) {
                 object = result.getParam();
                 hasChanged = true;
+                final ChangeDelta resultDelta = result.getDelta();
+                delta = delta == null || resultDelta == null ? null : delta.then(resultDelta);
             }
+            start = end;
+        }
+        if (mMetricsEnabled && !commandsToExecutes.isEmpty()) {
+            mMetrics.onReplay(cacheKey, commandsToExecutes.size(),
+                    System.nanoTime() - startNanos, invalidate);
+        }
+
+        if (invalidate) {
+            return null;
+        } else if (hasChanged) {
+            return new CacheElement<>(upToVersion, object, cacheElement.commands,
+                    cacheElement.writeTime, CacheElement.nextRevision(), cacheElement.revision, delta);
+        } else {
+            return new CacheElement<>(upToVersion, object, cacheElement.commands,
+                    cacheElement.writeTime, cacheElement.revision, cacheElement.previousRevision,
+                    cacheElement.delta);
+        }
+    }
+
+    /**
+     * Current element with all logged commands applied, but not published. Does not notify
+     * listeners, so it could be called from any thread.
+     */
+    @Nonnull
+    private <T> Optional<CacheElement<T>> peekCacheElement(@Nonnull CacheKey<T> cacheKey) {
+        final Slot<T> slot = getSlot(cacheKey);
+        final CacheElement<T> cacheElement = slot == null ? null : slot.get();
+        if (cacheElement == null) {
+            return Optional.absent();
+        }
+        final int upToVersion = mVersion;
+        if (cacheElement.version >= upToVersion) {
+            return Optional.of(cacheElement);
         }
-        cacheElement.version = mVersion++;
+        return Optional.fromNullable(replay(cacheKey, cacheElement, upToVersion));
+    }
+
+    /**
+     * Return current snapshot with all logged commands applied.
+     *
+     * Never blocks: commands are replayed on immutable snapshot and result is published with
+     * compare and set. If other thread published snapshot in meantime we start again from it.
+     */
+    @Nonnull
+    private <T> Optional<CacheElement<T>> recalculate(@Nonnull CacheKey<T> cacheKey,
+                                                     @Nonnull Notifications notifications) {
+        checkNotNull(cacheKey);
+        while (true) {
+            final Slot<T> slot = getSlot(cacheKey);
+            final CacheElement<T> cacheElement = slot == null ? null : slot.get();
+            if (cacheElement == null) {
+                return Optional.absent();
+            }
+            final int upToVersion = mVersion;
+            if (cacheElement.version >= upToVersion) {
+                return Optional.of(cacheElement);
+            }
+
+            final CacheElement<T> newCacheElement = replay(cacheKey, cacheElement, upToVersion);
+            final boolean hasChanged = newCacheElement != null
+                    && newCacheElement.revision != cacheElement.revision;
+            if (!slot.compareAndSet(cacheElement, newCacheElement)) {
+                continue;
+            }
 
-        if (hasChanged) {
             final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
-            if (cacheHolder != null) {
-                cacheHolder.object.get().object = object;
-                cacheHolder.onChanged(object);
+            final boolean isHolderSlot = cacheHolder != null && cacheHolder.slot == slot;
+            if (newCacheElement == null) {
+                removeCachedSlot(cacheKey, slot);
+                if (isHolderSlot) {
+                    updatePinnedWeight(cacheHolder, null);
+                    notifications.invalidated(cacheHolder);
+                }
+                return Optional.absent();
             }
+            if (hasChanged && isHolderSlot) {
+                updatePinnedWeight(cacheHolder, newCacheElement);
+                notifications.changed(cacheHolder);
+            }
+            return Optional.of(newCacheElement);
         }
-
-        return Optional.of(cacheElement);
     }
 
     @Nonnull
     @SuppressWarnings("unchecked")
-    private <T> ImmutableList<CommandToExecute<T, ?>> getCommandsToExecute(@Nonnull CacheElement<T> cacheElement) {
+    private <T> ImmutableList<CommandToExecute<T, ?>> getCommandsToExecute(@Nonnull CacheKey<T> cacheKey,
+                                                                          @Nonnull CacheElement<T> cacheElement,
+                                                                          int upToVersion) {
+        checkNotNull(cacheKey);
         checkNotNull(cacheElement);
         final ImmutableList<CommandToExecute<?, ?>> commandToExecutes = FluentIterable
-                .from(mToExecute)
-                .filter(CommandToExecute.matchingCacheElement(cacheElement))
-                .toSortedList(CommandToExecute.SORT_VERSION_ASC);
+                .from(mToExecute.subMap(cacheElement.version, true, upToVersion, false).values())
+                .filter(CommandToExecute.matchingCacheElement(cacheKey, cacheElement))
+                .toList();
         return (ImmutableList<CommandToExecute<T, ?>>)(ImmutableList<?>)commandToExecutes;
     }
 
+    /**
+     * Remove commands that are not needed by any live cache element and, if
+     * {@link #setMaxCommandLogSize(int)} was set, drop the oldest commands over the limit
+     * invalidating cache elements that still depend on them.
+     */
+    private void compactCommandLog() {
+        if (!mCompactionLock.tryLock()) {
+            return;
+        }
+        final Notifications notifications = new Notifications();
+        try {
+            // Expired objects are removed lazily, drop them so removal listeners are notified
+            mCache.cleanUp();
+            int minVersion = mVersion;
+            for (CacheEntry cacheEntry : mCache.asMap().values()) {
+                minVersion = minVersion(minVersion, cacheEntry.slot);
+            }
+            for (CacheHolder<?> cacheHolder : mHardReferenceStore.values()) {
+                minVersion = minVersion(minVersion, cacheHolder.slot);
+            }
+            if (mDiskCache != null) {
+                // Records evicted to disk should not keep log forever
+                mDiskCache.removeWrittenBefore(currentTimeMillis()
+                        - TimeUnit.NANOSECONDS.toMillis(mExpireAfterWriteNanos));
+                mDiskCache.removeOlderThan(mVersion - MAX_UNREAD_PINNED_COMMANDS);
+                minVersion = mDiskCache.minVersion(minVersion);
+            }
+            final MappedSnapshot snapshot = mSnapshot;
+            if (snapshot != null && !snapshot.isEmpty() && mSnapshotVersion < minVersion) {
+                // Unread records should not keep log forever
+                if (isExpired(mSnapshotRestoreTime)
+                        || mVersion - mSnapshotVersion > MAX_UNREAD_PINNED_COMMANDS) {
+                    snapshot.clear();
+                } else {
+                    minVersion = mSnapshotVersion;
+                }
+            }
+            dropCommandsOlderThan(minVersion);
+
+            final int maxCommandLogSize = mMaxCommandLogSize;
+            final int logSize = mLogSize.get();
+            if (maxCommandLogSize != NO_COMMAND_LOG_LIMIT && logSize > maxCommandLogSize) {
+                int lastDroppedVersion = mLogStartVersion;
+                int toDrop = logSize - maxCommandLogSize;
+                for (Integer version : mToExecute.keySet()) {
+                    if (toDrop-- <= 0) {
+                        break;
+                    }
+                    lastDroppedVersion = version;
+                }
+                dropCommandsOlderThan(lastDroppedVersion + 1);
+                invalidateOlderThan(lastDroppedVersion + 1, notifications);
+            }
+
+            int compactionThreshold = Math.max(MIN_COMPACTION_THRESHOLD, mLogSize.get() * 2);
+            if (maxCommandLogSize != NO_COMMAND_LOG_LIMIT) {
+                compactionThreshold = Math.min(compactionThreshold, maxCommandLogSize + 1);
+            }
+            mCompactionThreshold = compactionThreshold;
+        } finally {
+            mCompactionLock.unlock();
+        }
+        notifications.dispatch();
+    }
+
+    private static int minVersion(int minVersion, @Nonnull Slot<?> slot) {
+        final CacheElement<?> cacheElement = slot.get();
+        return cacheElement == null ? minVersion : Math.min(minVersion, cacheElement.version);
+    }
+
+    private void dropCommandsOlderThan(int version) {
+        if (version <= mLogStartVersion) {
+            return;
+        }
+        // Publish start version first so readers would not use partially removed log
+        mLogStartVersion = version;
+        final NavigableMap<Integer, CommandToExecute<?, ?>> dropped = mToExecute.headMap(version, false);
+        final int droppedSize = dropped.size();
+        dropped.clear();
+        mLogSize.addAndGet(-droppedSize);
+    }
+
+    private void invalidateOlderThan(int version, @Nonnull Notifications notifications) {
+        if (mDiskCache != null) {
+            mDiskCache.removeOlderThan(version);
+        }
+        final MappedSnapshot snapshot = mSnapshot;
+        if (snapshot != null && mSnapshotVersion < version) {
+            snapshot.clear();
+        }
+        for (CacheKey<?> cacheKey : ImmutableList.copyOf(mHardReferenceStore.keySet())) {
+            invalidateHolderOlderThan(cacheKey, version, notifications);
+        }
+        for (Map.Entry<CacheKey<?>, CacheEntry> entry : mCache.asMap().entrySet()) {
+            final CacheElement<?> cacheElement = entry.getValue().slot.get();
+            if ((cacheElement == null || cacheElement.version < version)
+                    && mCache.asMap().remove(entry.getKey(), entry.getValue())) {
+                notifyRemoved(entry.getKey());
+            }
+        }
+    }
+
+    private <T> void invalidateHolderOlderThan(@Nonnull CacheKey<T> cacheKey,
+                                               int version,
+                                               @Nonnull Notifications notifications) {
+        final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+        if (cacheHolder == null) {
+            return;
+        }
+        while (true) {
+            final CacheElement<T> cacheElement = cacheHolder.slot.get();
+            if (cacheElement == null || cacheElement.version >= version) {
+                return;
+            }
+            if (cacheHolder.slot.compareAndSet(cacheElement, null)) {
+                updatePinnedWeight(cacheHolder, null);
+                notifications.invalidated(cacheHolder);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deliver current objects of given keys to registered listeners again, i.e. when entities
+     * referenced by those objects have changed in {@link EntityStore}
+     */
+    public void notifyChanged(@Nonnull Iterable<? extends CacheKey<?>> cacheKeys) {
+        checkNotNull(cacheKeys);
+
+        final Notifications notifications = new Notifications();
+        for (CacheKey<?> cacheKey : cacheKeys) {
+            final CacheHolder<?> cacheHolder = getCacheHolder(cacheKey);
+            if (cacheHolder != null) {
+                recalculate(cacheKey, notifications);
+                markChanged(cacheHolder, notifications);
+            }
+        }
+        notifications.dispatch();
+    }
+
+    /**
+     * Publish the same object under new revision with unknown delta, so delta listeners refresh
+     * everything and derived keys are computed again
+     */
+    private <T> void markChanged(@Nonnull CacheHolder<T> cacheHolder,
+                                 @Nonnull Notifications notifications) {
+        while (true) {
+            final CacheElement<T> cacheElement = cacheHolder.slot.get();
+            if (cacheElement == null) {
+                return;
+            }
+            final CacheElement<T> changed = new CacheElement<>(cacheElement.version, cacheElement.object,
+                    cacheElement.commands, cacheElement.writeTime, CacheElement.nextRevision(),
+                    cacheElement.revision, null);
+            if (cacheHolder.slot.compareAndSet(cacheElement, changed)) {
+                notifications.changed(cacheHolder);
+                return;
+            }
+        }
+    }
+
     @Nonnull
     public <T> Optional<T> getCacheIfPresent(@Nonnull CacheKey<T> cacheKey) {
         checkNotNull(cacheKey);
+        final DerivedHolder<T> derivedHolder = getDerivedHolder(cacheKey);
+        if (derivedHolder != null) {
+            return derivedHolder.get();
+        }
         return getCacheElementIfPresent(cacheKey)
                 .transform(CacheElement.<T>toObject());
     }
 
-    int mVersion = 1;
+    /**
+     * Freshness of cached object according to policy, {@link FreshnessPolicy.Freshness#EXPIRED}
+     * if object is not present
+     */
+    @Nonnull
+    public <T> FreshnessPolicy.Freshness getFreshness(@Nonnull CacheKey<T> cacheKey,
+                                                      @Nonnull FreshnessPolicy policy) {
+        checkNotNull(policy);
+        final Optional<CacheElement<T>> cacheElement = getCacheElement(cacheKey);
+        if (!cacheElement.isPresent()) {
+            return FreshnessPolicy.Freshness.EXPIRED;
+        }
+        return policy.getFreshness(currentTimeMillis() - cacheElement.get().writeTime);
+    }
+
+    private long currentTimeMillis() {
+        return mTicker == null
+                ? System.currentTimeMillis()
+                : TimeUnit.NANOSECONDS.toMillis(mTicker.read());
+    }
 
     public <T> void putCache(@Nonnull CacheKey<T> cacheKey,
                              @Nonnull T object,
@@ -355,12 +1890,71 @@ public class CommandsDescription {
         checkNotNull(object);
         checkNotNull(commands);
 
-        final CacheElement<T> cacheElement = new CacheElement<>(mVersion++, object, commands);
-        mCache.put(cacheKey, cacheElement);
-        final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
-        if (cacheHolder != null) {
-            cacheHolder.object = Optional.of(cacheElement);
-            cacheHolder.onChanged(object);
+        final Notifications notifications = new Notifications();
+        putCache(cacheKey, object, commands, null, null, notifications);
+        notifications.dispatch();
+    }
+
+    /**
+     * Put object created from previous one, delta describing the change is delivered to
+     * {@link DeltaCacheInvalidationListener}s. If cached object is not previous anymore, listeners
+     * receive unknown delta.
+     */
+    public <T> void putCache(@Nonnull CacheKey<T> cacheKey,
+                             @Nonnull T object,
+                             @Nonnull List<CommandName<T, ?>> commands,
+                             @Nonnull T previous,
+                             @Nonnull ChangeDelta delta) {
+        checkNotNull(cacheKey);
+        checkNotNull(object);
+        checkNotNull(commands);
+        checkNotNull(previous);
+        checkNotNull(delta);
+
+        final Notifications notifications = new Notifications();
+        putCache(cacheKey, object, commands, previous, delta, notifications);
+        notifications.dispatch();
+    }
+
+    private <T> void putCache(@Nonnull CacheKey<T> cacheKey,
+                              @Nonnull T object,
+                              @Nonnull List<CommandName<T, ?>> commands,
+                              @Nullable T previous,
+                              @Nullable ChangeDelta delta,
+                              @Nonnull Notifications notifications) {
+        final Lock lock = lockKey(cacheKey);
+        try {
+            final CacheElement<T> cacheElement;
+            final Optional<CacheElement<T>> current = previous == null
+                    ? Optional.<CacheElement<T>>absent()
+                    : recalculate(cacheKey, notifications);
+            if (current.isPresent() && current.get().object == previous) {
+                cacheElement = new CacheElement<>(mVersion, object, commands, currentTimeMillis(),
+                        CacheElement.nextRevision(), current.get().revision, delta);
+            } else {
+                cacheElement = new CacheElement<>(mVersion, object, commands, currentTimeMillis());
+            }
+            final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+            if (cacheHolder != null) {
+                cacheHolder.slot.set(cacheElement);
+                cacheSlot(cacheKey, cacheHolder.slot, true);
+                updatePinnedWeight(cacheHolder, cacheElement);
+                updateIndex(cacheKey, cacheHolder);
+                notifications.changed(cacheHolder);
+                // Commands logged before key was indexed did not recalculate it
+                recalculate(cacheKey, notifications);
+            } else {
+                cacheSlot(cacheKey, new Slot<>(cacheElement), false);
+            }
+            if (mDiskCache != null) {
+                mDiskCache.delete(cacheKey);
+            }
+            final MappedSnapshot snapshot = mSnapshot;
+            if (snapshot != null) {
+                snapshot.delete(cacheKey);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -369,20 +1963,108 @@ public class CommandsDescription {
         checkNotNull(cacheKey);
         checkNotNull(listener);
 
-        final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
-        checkState(cacheHolder != null, "Already unregistered all listeners");
-        assert cacheHolder != null;
-        checkState(cacheHolder.references.remove(listener), "Not registered this listener");
-        if (cacheHolder.references.isEmpty()) {
-            mHardReferenceStore.remove(cacheKey);
+        final DerivedHolder<T> derivedHolder = getDerivedHolder(cacheKey);
+        if (derivedHolder != null) {
+            derivedHolder.unregister(listener);
+            return;
+        }
+
+        final Lock lock = lockKey(cacheKey);
+        try {
+            final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+            checkState(cacheHolder != null, "Already unregistered all listeners");
+            assert cacheHolder != null;
+            checkState(cacheHolder.references.remove(listener), "Not registered this listener");
+            cacheHolder.inactive.remove(listener);
+            cacheHolder.forgetDelivered(listener);
+            if (cacheHolder.references.isEmpty()) {
+                removeFromIndex(cacheKey, cacheHolder);
+                mHardReferenceStore.remove(cacheKey);
+                if (mMetricsEnabled) {
+                    mMetrics.onHoldersChanged(mHardReferenceStore.size());
+                }
+                updatePinnedWeight(cacheHolder, null);
+                // Keep object in LRU cache, now accounted as not pinned
+                cacheSlot(cacheKey, cacheHolder.slot, false);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Mark registered listener as active or not, listeners are active when registered. With
+     * {@link Recalculation#LAZY} commands are replayed only on objects with an active listener,
+     * listener that gets active is notified about changes it has missed.
+     */
+    public <T> void setListenerActive(@Nonnull CacheKey<T> cacheKey,
+                                      @Nonnull CacheInvalidationListener<T> listener,
+                                      boolean active) {
+        checkNotNull(cacheKey);
+        checkNotNull(listener);
+
+        final Notifications notifications = new Notifications();
+        final Lock lock = lockKey(cacheKey);
+        try {
+            final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+            checkState(cacheHolder != null && cacheHolder.references.contains(listener),
+                    "Not registered this listener");
+            assert cacheHolder != null;
+            if (!active) {
+                cacheHolder.inactive.add(listener);
+                return;
+            }
+            cacheHolder.inactive.remove(listener);
+            if (cacheHolder.dirty) {
+                cacheHolder.dirty = false;
+                recalculate(cacheKey, notifications);
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifications.dispatch();
+    }
+
+    int getCommandLogSize() {
+        return mLogSize.get();
+    }
+
+    /**
+     * Keys visited by {@link #invalidate(CommandName, Object)} of given command
+     */
+    @Nonnull
+    Set<CacheKey<?>> getIndexedKeysSnapshot(@Nonnull CommandName<?, ?> commandName) {
+        final Set<CacheKey<?>> indexedKeys = mCommandIndex.get(commandName);
+        return indexedKeys == null ? ImmutableSet.<CacheKey<?>>of() : ImmutableSet.copyOf(indexedKeys);
+    }
+
     public void clearAll() {
+        final Notifications notifications = new Notifications();
+        final List<CacheKey<?>> cachedKeys = ImmutableList.copyOf(mCache.asMap().keySet());
         mCache.invalidateAll();
-        for (CacheHolder<?> cacheHolder : mHardReferenceStore.values()) {
-            cacheHolder.object = Optional.absent();
-            cacheHolder.onInvalidated();
+        for (CacheKey<?> cacheKey : cachedKeys) {
+            notifyRemoved(cacheKey);
+        }
+        if (mDiskCache != null) {
+            mDiskCache.clear();
+        }
+        final MappedSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            snapshot.clear();
+        }
+        for (CacheKey<?> cacheKey : ImmutableList.copyOf(mHardReferenceStore.keySet())) {
+            clearHolder(cacheKey, notifications);
+        }
+        notifications.dispatch();
+    }
+
+    private <T> void clearHolder(@Nonnull CacheKey<T> cacheKey,
+                                 @Nonnull Notifications notifications) {
+        final CacheHolder<T> cacheHolder = getCacheHolder(cacheKey);
+        if (cacheHolder != null) {
+            cacheHolder.slot.set(null);
+            updatePinnedWeight(cacheHolder, null);
+            notifications.invalidated(cacheHolder);
         }
     }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+/**
+ * Decides how many calls of {@link SyncExecutor} could run at once. Use separate executors with
+ * own limiters to limit calls to different backends independently.
+ *
+ * @see AimdLimiter
+ */
+public interface ConcurrencyLimiter {
+    /**
+     * @return maximal number of calls running at once, at least 1
+     */
+    public int getLimit();
+
+    /**
+     * Called after every finished call
+     *
+     * @param latencyNanos time of call
+     * @param failed true if call thrown exception
+     * @param inFlight number of calls that were running including this one
+     */
+    public void onSample(long latencyNanos, boolean failed, int inFlight);
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Listener that receives description of change together with changed object. Delta is relative
+ * to the object previously delivered to this listener, null if it is not known i.e. the first
+ * object or object put without delta. In that case listener should refresh everything.
+ */
+public interface DeltaCacheInvalidationListener<T> extends CacheInvalidationListener<T> {
+    public void onChanged(@Nonnull T object, @Nullable ChangeDelta delta);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Optional;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Computes object of derived key from objects of its source keys, i.e. count of comments.
+ *
+ * @see CommandsDescription#addDerived(CacheKey, java.util.List, Derivation)
+ */
+public interface Derivation<T> {
+
+    /**
+     * Called only when any source has changed since last call, so it could be expensive
+     *
+     * @return absent if derived object could not be computed, i.e. source is not present
+     */
+    @Nonnull
+    public Optional<T> derive(@Nonnull Sources sources);
+
+    public interface Sources {
+        /**
+         * @param cacheKey one of source keys
+         */
+        @Nonnull
+        public <S> Optional<S> get(@Nonnull CacheKey<S> cacheKey);
+    }
+}
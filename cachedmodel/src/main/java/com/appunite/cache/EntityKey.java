@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Identity of entity stored in {@link EntityStore}, cached objects hold keys instead of entities
+ */
+public class EntityKey<T> {
+
+    @Nonnull
+    private final Class<T> mType;
+    @Nonnull
+    private final Object mId;
+
+    EntityKey(@Nonnull Class<T> type, @Nonnull Object id) {
+        mType = checkNotNull(type);
+        mId = checkNotNull(id);
+    }
+
+    public static <T> EntityKey<T> of(@Nonnull Class<T> type, @Nonnull Object id) {
+        return new EntityKey<>(type, id);
+    }
+
+    @Nonnull
+    public Class<T> getType() {
+        return mType;
+    }
+
+    @Nonnull
+    public Object getId() {
+        return mId;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EntityKey)) return false;
+
+        final EntityKey entityKey = (EntityKey) o;
+
+        return mType.equals(entityKey.mType) && mId.equals(entityKey.mId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mType, mId);
+    }
+
+    @Override
+    public String toString() {
+        return "Entity: " + mType.getSimpleName() + "/" + mId;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Normalized storage of entities shared by many cached objects, i.e. comment present in comment
+ * list of post and in search results.
+ *
+ * Cached objects hold {@link EntityKey}s and every entity is stored once. Updating entity does not
+ * rebuild cached objects, {@link CommandsDescription} only notifies listeners of objects that
+ * reference it, so they read new entity with {@link #get(EntityKey)}.
+ *
+ * Entity is kept as long as any cached object depends on it. Dependencies of objects that expired
+ * or were evicted from memory are released automatically, see {@link #release(CacheKey)}.
+ */
+public class EntityStore {
+
+    @Nonnull
+    private final CommandsDescription mCommandsDescription;
+    @Nonnull
+    private final ConcurrentMap<EntityKey<?>, Object> mEntities = new ConcurrentHashMap<>();
+    /**
+     * Cached objects referencing entity, guarded by {@link #mLock}
+     */
+    @Nonnull
+    private final Map<EntityKey<?>, Set<CacheKey<?>>> mDependents = Maps.newHashMap();
+    /**
+     * Entities referenced by cached object, guarded by {@link #mLock}
+     */
+    @Nonnull
+    private final Map<CacheKey<?>, Set<EntityKey<?>>> mDependencies = Maps.newHashMap();
+    @Nonnull
+    private final Object mLock = new Object();
+
+    public EntityStore(@Nonnull CommandsDescription commandsDescription) {
+        mCommandsDescription = checkNotNull(commandsDescription);
+        mCommandsDescription.addRemovalListener(new CacheRemovalListener() {
+            @Override
+            public void onRemoved(@Nonnull CacheKey<?> cacheKey) {
+                release(cacheKey);
+            }
+        });
+    }
+
+    /**
+     * Store entity referenced by object cached under given key. If it replaces different entity,
+     * listeners of other objects that reference it are notified.
+     */
+    @Nonnull
+    public <T> EntityKey<T> put(@Nonnull CacheKey<?> dependent,
+                                @Nonnull EntityKey<T> entityKey,
+                                @Nonnull T entity) {
+        checkNotNull(dependent);
+        checkNotNull(entityKey);
+        checkNotNull(entity);
+        final Set<CacheKey<?>> changedDependents = Sets.newLinkedHashSet();
+        synchronized (mLock) {
+            putEntity(dependent, entityKey, entity, changedDependents);
+        }
+        notifyChanged(changedDependents);
+        return entityKey;
+    }
+
+    /**
+     * Store entities referenced by object cached under given key
+     *
+     * @return keys in order of entities, to be held by cached object
+     */
+    @Nonnull
+    public <T> List<EntityKey<T>> putAll(@Nonnull CacheKey<?> dependent,
+                                         @Nonnull Iterable<T> entities,
+                                         @Nonnull Function<? super T, EntityKey<T>> keyFunction) {
+        checkNotNull(dependent);
+        checkNotNull(keyFunction);
+        final ImmutableList.Builder<EntityKey<T>> entityKeys = ImmutableList.builder();
+        final Set<CacheKey<?>> changedDependents = Sets.newLinkedHashSet();
+        synchronized (mLock) {
+            for (T entity : entities) {
+                final EntityKey<T> entityKey = checkNotNull(keyFunction.apply(entity));
+                putEntity(dependent, entityKey, checkNotNull(entity), changedDependents);
+                entityKeys.add(entityKey);
+            }
+        }
+        notifyChanged(changedDependents);
+        return entityKeys.build();
+    }
+
+    /**
+     * Should be called while holding {@link #mLock}
+     *
+     * @param changedDependents collects other objects referencing replaced entity
+     */
+    private void putEntity(@Nonnull CacheKey<?> dependent,
+                           @Nonnull EntityKey<?> entityKey,
+                           @Nonnull Object entity,
+                           @Nonnull Set<CacheKey<?>> changedDependents) {
+        final Object previous = mEntities.put(entityKey, entity);
+        if (previous != null && !previous.equals(entity)) {
+            final Set<CacheKey<?>> dependents = mDependents.get(entityKey);
+            if (dependents != null) {
+                changedDependents.addAll(dependents);
+            }
+        }
+        addDependency(dependent, entityKey);
+        // Object that puts entity reads the new one anyway
+        changedDependents.remove(dependent);
+    }
+
+    private void notifyChanged(@Nonnull Set<CacheKey<?>> changedDependents) {
+        if (!changedDependents.isEmpty()) {
+            mCommandsDescription.notifyChanged(changedDependents);
+        }
+    }
+
+    private void addDependency(@Nonnull CacheKey<?> dependent, @Nonnull EntityKey<?> entityKey) {
+        Set<CacheKey<?>> dependents = mDependents.get(entityKey);
+        if (dependents == null) {
+            dependents = Sets.newHashSet();
+            mDependents.put(entityKey, dependents);
+        }
+        dependents.add(dependent);
+        Set<EntityKey<?>> dependencies = mDependencies.get(dependent);
+        if (dependencies == null) {
+            dependencies = Sets.newHashSet();
+            mDependencies.put(dependent, dependencies);
+        }
+        dependencies.add(entityKey);
+    }
+
+    /**
+     * Replace entity and notify listeners of every cached object that references it
+     *
+     * @return false if entity is not referenced by any cached object so it was not stored
+     */
+    public <T> boolean update(@Nonnull EntityKey<T> entityKey, @Nonnull T entity) {
+        checkNotNull(entityKey);
+        checkNotNull(entity);
+        final List<CacheKey<?>> dependents;
+        synchronized (mLock) {
+            if (!mEntities.containsKey(entityKey)) {
+                return false;
+            }
+            mEntities.put(entityKey, entity);
+            dependents = Lists.newArrayList(mDependents.get(entityKey));
+        }
+        mCommandsDescription.notifyChanged(dependents);
+        return true;
+    }
+
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public <T> Optional<T> get(@Nonnull EntityKey<T> entityKey) {
+        checkNotNull(entityKey);
+        return Optional.fromNullable((T) mEntities.get(entityKey));
+    }
+
+    /**
+     * Resolve keys held by cached object
+     *
+     * @throws IllegalStateException if entity was released
+     */
+    @Nonnull
+    public <T> List<T> getAll(@Nonnull List<EntityKey<T>> entityKeys) {
+        checkNotNull(entityKeys);
+        final ImmutableList.Builder<T> entities = ImmutableList.builder();
+        for (EntityKey<T> entityKey : entityKeys) {
+            final Optional<T> entity = get(entityKey);
+            checkState(entity.isPresent(), "Entity %s was released", entityKey);
+            entities.add(entity.get());
+        }
+        return entities.build();
+    }
+
+    /**
+     * Forget entities referenced by object cached under given key, i.e. before putting new object.
+     * Entities not referenced by other objects are dropped.
+     */
+    public void release(@Nonnull CacheKey<?> dependent) {
+        checkNotNull(dependent);
+        synchronized (mLock) {
+            final Set<EntityKey<?>> dependencies = mDependencies.remove(dependent);
+            if (dependencies == null) {
+                return;
+            }
+            for (EntityKey<?> entityKey : dependencies) {
+                final Set<CacheKey<?>> dependents = mDependents.get(entityKey);
+                dependents.remove(dependent);
+                if (dependents.isEmpty()) {
+                    mDependents.remove(entityKey);
+                    mEntities.remove(entityKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of stored entities
+     */
+    public int size() {
+        return mEntities.size();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides if cached object could be served and if it should be revalidated, based on time
+ * since it was put to cache.
+ *
+ * @see CommandsDescription#getFreshness(CacheKey, FreshnessPolicy)
+ */
+public class FreshnessPolicy {
+
+    public static enum Freshness {
+        /**
+         * Object could be served without revalidation
+         */
+        FRESH,
+        /**
+         * Object could be served but should be revalidated
+         */
+        STALE,
+        /**
+         * Object is too old to be served or it is not present in cache
+         */
+        EXPIRED
+    }
+
+    /**
+     * Objects are never revalidated as long as they are present in cache
+     */
+    public static final FreshnessPolicy ALWAYS_FRESH = new FreshnessPolicy(Long.MAX_VALUE, 0L);
+
+    private final long mFreshForMillis;
+    private final long mMaxStaleMillis;
+
+    private FreshnessPolicy(long freshForMillis, long maxStaleMillis) {
+        mFreshForMillis = freshForMillis;
+        mMaxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * @param freshFor time for which object is served without revalidation
+     * @param maxStale time after freshFor for which object is still served but revalidated
+     */
+    @Nonnull
+    public static FreshnessPolicy of(long freshFor, long maxStale, @Nonnull TimeUnit unit) {
+        checkArgument(freshFor >= 0, "freshFor could not be negative");
+        checkArgument(maxStale >= 0, "maxStale could not be negative");
+        return new FreshnessPolicy(unit.toMillis(freshFor), unit.toMillis(maxStale));
+    }
+
+    @Nonnull
+    public Freshness getFreshness(long ageMillis) {
+        if (ageMillis < mFreshForMillis) {
+            return Freshness.FRESH;
+        }
+        if (ageMillis - mFreshForMillis < mMaxStaleMillis) {
+            return Freshness.STALE;
+        }
+        return Freshness.EXPIRED;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("freshForMillis", mFreshForMillis)
+                .add("maxStaleMillis", mMaxStaleMillis)
+                .toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Records stored in memory mapped file divided into segments. Records are appended to current
+ * segment, if it is full the oldest segment is reused and records stored in it are forgotten.
+ *
+ * Index of records is kept only in memory.
+ */
+class MappedSegmentFile implements Closeable {
+
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private static class Record {
+        final int segment;
+        final int offset;
+        final int length;
+        final int version;
+        final long writeTime;
+
+        private Record(int segment, int offset, int length, int version, long writeTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.writeTime = writeTime;
+        }
+    }
+
+    @Nonnull
+    private final RandomAccessFile mFile;
+    @Nonnull
+    private final MappedByteBuffer mBuffer;
+    private final int mSegmentSize;
+    private final int mSegmentsCount;
+    @Nonnull
+    private final Map<CacheKey<?>, Record> mIndex = Maps.newHashMap();
+    private int mSegment = 0;
+    private int mPosition = 0;
+
+    MappedSegmentFile(@Nonnull File file, int maxSizeBytes, int segmentsCount) throws IOException {
+        checkNotNull(file);
+        checkArgument(segmentsCount > 0, "segmentsCount should be positive");
+        checkArgument(maxSizeBytes >= segmentsCount, "maxSizeBytes is too small");
+        mSegmentsCount = segmentsCount;
+        mSegmentSize = maxSizeBytes / segmentsCount;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize * segmentsCount);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if record is bigger than segment
+     */
+    public synchronized boolean put(@Nonnull CacheKey<?> cacheKey, int version, long writeTime,
+                                    @Nonnull byte[] record) {
+        checkNotNull(cacheKey);
+        checkNotNull(record);
+        final int size = RECORD_HEADER_SIZE + record.length;
+        if (size > mSegmentSize) {
+            mIndex.remove(cacheKey);
+            return false;
+        }
+        if (mPosition + size > mSegmentSize) {
+            mSegment = (mSegment + 1) % mSegmentsCount;
+            mPosition = 0;
+            forgetSegment(mSegment);
+        }
+        final int offset = mSegment * mSegmentSize + mPosition;
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(record.length);
+        buffer.put(record);
+        mIndex.put(cacheKey, new Record(mSegment, offset, record.length, version, writeTime));
+        mPosition += size;
+        return true;
+    }
+
+    @Nullable
+    public synchronized byte[] remove(@Nonnull CacheKey<?> cacheKey) {
+        final Record record = mIndex.remove(checkNotNull(cacheKey));
+        if (record == null) {
+            return null;
+        }
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(record.offset + RECORD_HEADER_SIZE);
+        final byte[] bytes = new byte[record.length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public synchronized void delete(@Nonnull CacheKey<?> cacheKey) {
+        mIndex.remove(checkNotNull(cacheKey));
+    }
+
+    public synchronized int minVersion(int minVersion) {
+        for (Record record : mIndex.values()) {
+            minVersion = Math.min(minVersion, record.version);
+        }
+        return minVersion;
+    }
+
+    public synchronized void removeOlderThan(int version) {
+        final Iterator<Record> iterator = mIndex.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().version < version) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void removeWrittenBefore(long writeTime) {
+        final Iterator<Record> iterator = mIndex.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().writeTime < writeTime) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mIndex.clear();
+        mSegment = 0;
+        mPosition = 0;
+    }
+
+    private void forgetSegment(int segment) {
+        final Iterator<Record> iterator = mIndex.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().segment == segment) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mIndex.clear();
+        mFile.close();
+    }
+}
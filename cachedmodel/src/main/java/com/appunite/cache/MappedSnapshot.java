@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Snapshot of cache records in single file. File starts with index of records so opening
+ * snapshot reads only index, records are read from memory mapped file when requested.
+ *
+ * Layout: magic, records count, index entries (key length, key UTF-8 bytes, record offset, record
+ * length) and records.
+ */
+class MappedSnapshot {
+
+    private static final int MAGIC = 0x43534e31;
+
+    private static class Record {
+        final int offset;
+        final int length;
+
+        private Record(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    @Nonnull
+    private final ByteBuffer mBuffer;
+    @Nonnull
+    private final Map<CacheKey<?>, Record> mIndex;
+
+    private MappedSnapshot(@Nonnull ByteBuffer buffer, @Nonnull Map<CacheKey<?>, Record> index) {
+        mBuffer = buffer;
+        mIndex = index;
+    }
+
+    static void write(@Nonnull File file, @Nonnull Map<CacheKey<?>, byte[]> records) throws IOException {
+        checkNotNull(file);
+        checkNotNull(records);
+        final Map<CacheKey<?>, byte[]> keys = Maps.newLinkedHashMap();
+        int indexSize = 8;
+        for (CacheKey<?> cacheKey : records.keySet()) {
+            final byte[] key = cacheKey.getKey().getBytes(Charsets.UTF_8);
+            keys.put(cacheKey, key);
+            indexSize += 12 + key.length;
+        }
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(records.size());
+            int offset = indexSize;
+            for (Map.Entry<CacheKey<?>, byte[]> entry : keys.entrySet()) {
+                final byte[] record = records.get(entry.getKey());
+                output.writeInt(entry.getValue().length);
+                output.write(entry.getValue());
+                output.writeInt(offset);
+                output.writeInt(record.length);
+                offset += record.length;
+            }
+            for (CacheKey<?> cacheKey : keys.keySet()) {
+                output.write(records.get(cacheKey));
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    @Nonnull
+    static MappedSnapshot open(@Nonnull File file) throws IOException {
+        checkNotNull(file);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            final int count = buffer.getInt();
+            final Map<CacheKey<?>, Record> index = Maps.newHashMapWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                final byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                index.put(CacheKey.of(new String(key, Charsets.UTF_8)),
+                        new Record(buffer.getInt(), buffer.getInt()));
+            }
+            return new MappedSnapshot(buffer, index);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted snapshot file: " + file, e);
+        } finally {
+            // Mapping stays valid after closing file
+            randomAccessFile.close();
+        }
+    }
+
+    @Nullable
+    public synchronized byte[] remove(@Nonnull CacheKey<?> cacheKey) {
+        final Record record = mIndex.remove(checkNotNull(cacheKey));
+        if (record == null) {
+            return null;
+        }
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(record.offset);
+        final byte[] bytes = new byte[record.length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public synchronized void delete(@Nonnull CacheKey<?> cacheKey) {
+        mIndex.remove(checkNotNull(cacheKey));
+    }
+
+    public synchronized boolean isEmpty() {
+        return mIndex.isEmpty();
+    }
+
+    public synchronized void clear() {
+        mIndex.clear();
+    }
+}
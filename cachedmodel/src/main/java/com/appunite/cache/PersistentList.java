@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable list with amortized O(1) append and prepend, useful for paginated models.
+ *
+ * Lists share a backing array with free space on both ends. The first list that appends
+ * (or prepends) to a part of array that is not used yet claims it, other lists copy their
+ * elements to a new array. So extending the latest version of a list does not copy anything
+ * while older versions stay unchanged.
+ */
+public class PersistentList<E> extends AbstractList<E> implements RandomAccess {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final PersistentList<Object> EMPTY =
+            new PersistentList<>(new Buffer(new Object[0], 0), 0, 0);
+
+    /**
+     * Array shared by lists, elements between head and tail are immutable
+     */
+    private static class Buffer {
+        @Nonnull
+        final Object[] elements;
+        @Nonnull
+        final AtomicInteger head;
+        @Nonnull
+        final AtomicInteger tail;
+
+        Buffer(@Nonnull Object[] elements, int position) {
+            this.elements = elements;
+            head = new AtomicInteger(position);
+            tail = new AtomicInteger(position);
+        }
+    }
+
+    @Nonnull
+    private final Buffer mBuffer;
+    private final int mStart;
+    private final int mEnd;
+
+    private PersistentList(@Nonnull Buffer buffer, int start, int end) {
+        mBuffer = buffer;
+        mStart = start;
+        mEnd = end;
+    }
+
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentList<E> of() {
+        return (PersistentList<E>) EMPTY;
+    }
+
+    /**
+     * @return same list if elements are already {@link PersistentList}
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentList<E> copyOf(@Nonnull Collection<? extends E> elements) {
+        if (elements instanceof PersistentList) {
+            return (PersistentList<E>) elements;
+        }
+        return PersistentList.<E>of().appendAll(elements);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkElementIndex(index, size());
+        return (E) mBuffer.elements[mStart + index];
+    }
+
+    @Override
+    public int size() {
+        return mEnd - mStart;
+    }
+
+    @Nonnull
+    public PersistentList<E> append(@Nonnull E element) {
+        return appendAll(new Object[]{checkNotNull(element)});
+    }
+
+    @Nonnull
+    public PersistentList<E> prepend(@Nonnull E element) {
+        return prependAll(new Object[]{checkNotNull(element)});
+    }
+
+    /**
+     * @return list with elements added at the end, in order
+     */
+    @Nonnull
+    public PersistentList<E> appendAll(@Nonnull Collection<? extends E> elements) {
+        return appendAll(checkElements(elements));
+    }
+
+    /**
+     * @return list with elements added at the beginning, in order, so first element of given
+     * list will be the first one
+     */
+    @Nonnull
+    public PersistentList<E> prependAll(@Nonnull List<? extends E> elements) {
+        return prependAll(checkElements(elements));
+    }
+
+    @Nonnull
+    private PersistentList<E> appendAll(@Nonnull Object[] elements) {
+        final int count = elements.length;
+        if (count == 0) {
+            return this;
+        }
+        final int end = mEnd + count;
+        if (end <= mBuffer.elements.length && mBuffer.tail.compareAndSet(mEnd, end)) {
+            System.arraycopy(elements, 0, mBuffer.elements, mEnd, count);
+            return new PersistentList<>(mBuffer, mStart, end);
+        }
+        final Buffer buffer = newBuffer(size() + count, false);
+        final int start = buffer.head.get();
+        System.arraycopy(mBuffer.elements, mStart, buffer.elements, start, size());
+        System.arraycopy(elements, 0, buffer.elements, start + size(), count);
+        buffer.tail.set(start + size() + count);
+        return new PersistentList<>(buffer, start, start + size() + count);
+    }
+
+    @Nonnull
+    private PersistentList<E> prependAll(@Nonnull Object[] elements) {
+        final int count = elements.length;
+        if (count == 0) {
+            return this;
+        }
+        final int start = mStart - count;
+        if (start >= 0 && mBuffer.head.compareAndSet(mStart, start)) {
+            System.arraycopy(elements, 0, mBuffer.elements, start, count);
+            return new PersistentList<>(mBuffer, start, mEnd);
+        }
+        final Buffer buffer = newBuffer(size() + count, true);
+        final int end = buffer.tail.get();
+        final int newStart = end - size() - count;
+        System.arraycopy(elements, 0, buffer.elements, newStart, count);
+        System.arraycopy(mBuffer.elements, mStart, buffer.elements, newStart + count, size());
+        buffer.head.set(newStart);
+        return new PersistentList<>(buffer, newStart, end);
+    }
+
+    /**
+     * Create buffer with free space for growth, mostly on side that grows
+     */
+    @Nonnull
+    private static Buffer newBuffer(int size, boolean prepending) {
+        final int capacity = Math.max(MIN_CAPACITY, size * 2);
+        final int spare = capacity - size;
+        // Leave a quarter of spare space on the other side
+        final int position = prepending ? capacity - spare / 4 : spare / 4;
+        return new Buffer(new Object[capacity], position);
+    }
+
+    @Nonnull
+    private static Object[] checkElements(@Nonnull Collection<?> elements) {
+        final Object[] array = elements.toArray();
+        for (Object element : array) {
+            checkNotNull(element, "PersistentList could not contain null elements");
+        }
+        return array;
+    }
+}
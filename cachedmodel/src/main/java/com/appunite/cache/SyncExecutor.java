@@ -1,8 +1,26 @@
 package com.appunite.cache;
 
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -14,11 +32,112 @@ public class SyncExecutor {
     private ListeningExecutorService mExecutor;
     @Nonnull
     private Scheduler mScheduler;
+    @Nonnull
+    private final Map<Object, SharedCall<?>> mSharedCalls = Maps.newHashMap();
+    /**
+     * Calls waiting for executor, every call has its {@link #mRunNext} submitted to executor
+     */
+    @Nonnull
+    private final PriorityBlockingQueue<PrioritizedTask> mQueue = new PriorityBlockingQueue<>();
+    @Nonnull
+    private final AtomicLong mSequence = new AtomicLong();
+    @Nonnull
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            final PrioritizedTask task = mQueue.poll();
+            if (task != null) {
+                task.task.run();
+            }
+        }
+    };
+
+    /**
+     * Calls are executed in order of deadline: time of call plus aging of its priority. So more
+     * important calls are executed first, but calls waiting longer than difference of aging are
+     * not starved by more important ones.
+     */
+    public static enum Priority {
+        /**
+         * Data for content that user is looking at
+         */
+        USER_VISIBLE(0),
+        /**
+         * Data that user will probably need soon
+         */
+        PREFETCH(TimeUnit.SECONDS.toNanos(1)),
+        /**
+         * Refresh of data that user already has
+         */
+        BACKGROUND_REFRESH(TimeUnit.SECONDS.toNanos(5));
+
+        private final long mAgingNanos;
+
+        private Priority(long agingNanos) {
+            mAgingNanos = agingNanos;
+        }
+
+        /**
+         * @return the less important of priorities
+         */
+        @Nonnull
+        public static Priority lower(@Nonnull Priority first, @Nonnull Priority second) {
+            return first.compareTo(second) >= 0 ? first : second;
+        }
+    }
+
+    private static class PrioritizedTask implements Comparable<PrioritizedTask> {
+        @Nonnull
+        final ListenableFutureTask<?> task;
+        final long deadlineNanos;
+        final long sequence;
+
+        PrioritizedTask(@Nonnull ListenableFutureTask<?> task, long deadlineNanos, long sequence) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@Nonnull PrioritizedTask other) {
+            // Difference handles overflow of nano time
+            final long deadlineDifference = deadlineNanos - other.deadlineNanos;
+            if (deadlineDifference != 0) {
+                return deadlineDifference < 0 ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    @Nullable
+    private final ConcurrencyLimiter mLimiter;
+    @Nonnull
+    private final Ticker mTicker;
+    /**
+     * Number of calls running on executor, guarded by {@link #mQueue} when limiter is used
+     */
+    private int mInFlight;
 
     public SyncExecutor(@Nonnull ListeningExecutorService executor,
                         @Nonnull Scheduler scheduler) {
         mExecutor = checkNotNull(executor);
         mScheduler = checkNotNull(scheduler);
+        mLimiter = null;
+        mTicker = Ticker.systemTicker();
+    }
+
+    /**
+     * Executor that runs at most {@link ConcurrencyLimiter#getLimit()} calls at once, executor
+     * should have at least that many threads.
+     */
+    public SyncExecutor(@Nonnull ListeningExecutorService executor,
+                        @Nonnull Scheduler scheduler,
+                        @Nonnull ConcurrencyLimiter limiter,
+                        @Nonnull Ticker ticker) {
+        mExecutor = checkNotNull(executor);
+        mScheduler = checkNotNull(scheduler);
+        mLimiter = checkNotNull(limiter);
+        mTicker = checkNotNull(ticker);
     }
 
     public static interface OnSuccess<T> {
@@ -32,40 +151,352 @@ public class SyncExecutor {
     public static interface Method<T> extends OnSuccess<T>, OnError {
     }
 
-    public <X> void executeAndReturn(@Nonnull final Callable<X> call,
-                                     @Nullable final Method<X> method) {
-        executeAndReturn(call, method, method);
+    public <X> ListenableFuture<X> executeAndReturn(@Nonnull final Callable<X> call,
+                                                    @Nullable final Method<X> method) {
+        return executeAndReturn(call, method, method);
     }
 
-    public <X> void executeAndReturn(@Nonnull final Callable<X> call,
-                                     @Nullable final OnSuccess<X> success,
-                                     @Nullable final OnError error) {
+    public <X> ListenableFuture<X> executeAndReturn(@Nonnull final Callable<X> call,
+                                                    @Nullable final OnSuccess<X> success,
+                                                    @Nullable final OnError error) {
+        return executeAndReturn(Priority.USER_VISIBLE, call, success, error);
+    }
+
+    /**
+     * Execute call on executor and return result to callbacks on scheduler.
+     *
+     * @return future of call, after cancellation callbacks are not called
+     */
+    public <X> ListenableFuture<X> executeAndReturn(@Nonnull Priority priority,
+                                                    @Nonnull final Callable<X> call,
+                                                    @Nullable final OnSuccess<X> success,
+                                                    @Nullable final OnError error) {
+        checkNotNull(priority, "priority could not be null");
         checkNotNull(call, "call could not be null");
-        mExecutor.execute(new Runnable() {
+        final ListenableFuture<X> future = submit(priority, call);
+        addCallbacks(future, success, error);
+        return future;
+    }
+
+    @Nonnull
+    private <X> ListenableFuture<X> submit(@Nonnull Priority priority, @Nonnull Callable<X> call) {
+        final ListenableFutureTask<X> task = ListenableFutureTask.create(call);
+        enqueue(new PrioritizedTask(task, System.nanoTime() + priority.mAgingNanos,
+                mSequence.getAndIncrement()));
+        return task;
+    }
+
+    @Nonnull
+    private PrioritizedTask enqueue(@Nonnull PrioritizedTask prioritizedTask) {
+        mQueue.add(prioritizedTask);
+        if (mLimiter != null) {
+            runQueuedWithinLimit();
+            return prioritizedTask;
+        }
+        try {
+            mExecutor.execute(mRunNext);
+        } catch (RejectedExecutionException e) {
+            mQueue.remove(prioritizedTask);
+            throw e;
+        }
+        return prioritizedTask;
+    }
+
+    /**
+     * Move task that still waits in queue to deadline of given priority if it is earlier
+     *
+     * @return task that is in queue now or null if task is not queued anymore
+     */
+    @Nullable
+    private PrioritizedTask promote(@Nonnull PrioritizedTask prioritizedTask,
+                                    @Nonnull Priority priority) {
+        final long deadlineNanos = System.nanoTime() + priority.mAgingNanos;
+        if (deadlineNanos - prioritizedTask.deadlineNanos >= 0) {
+            return prioritizedTask;
+        }
+        // Removal claims task, so it is not run by executor in meantime
+        if (!mQueue.remove(prioritizedTask)) {
+            return null;
+        }
+        try {
+            // Runner that polled queue in meantime did not find this task, so it gets a new one
+            return enqueue(new PrioritizedTask(prioritizedTask.task, deadlineNanos,
+                    prioritizedTask.sequence));
+        } catch (RejectedExecutionException e) {
+            prioritizedTask.task.cancel(false);
+            return null;
+        }
+    }
+
+    private void runQueuedWithinLimit() {
+        assert mLimiter != null;
+        while (true) {
+            final PrioritizedTask prioritizedTask;
+            synchronized (mQueue) {
+                if (mInFlight >= Math.max(1, mLimiter.getLimit())) {
+                    return;
+                }
+                prioritizedTask = mQueue.poll();
+                if (prioritizedTask == null) {
+                    return;
+                }
+                mInFlight += 1;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runMeasured(prioritizedTask.task);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (mQueue) {
+                    mInFlight -= 1;
+                }
+                prioritizedTask.task.cancel(false);
+            }
+        }
+    }
+
+    private void runMeasured(@Nonnull ListenableFutureTask<?> task) {
+        assert mLimiter != null;
+        final long start = mTicker.read();
+        task.run();
+        final long latencyNanos = mTicker.read() - start;
+        final int inFlight;
+        synchronized (mQueue) {
+            inFlight = mInFlight;
+            mInFlight -= 1;
+        }
+        if (!task.isCancelled()) {
+            mLimiter.onSample(latencyNanos, isFailed(task), inFlight);
+        }
+        runQueuedWithinLimit();
+    }
+
+    private static boolean isFailed(@Nonnull ListenableFutureTask<?> task) {
+        try {
+            // Task is done so it does not block
+            task.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private <X> void addCallbacks(@Nonnull ListenableFuture<X> future,
+                                  @Nullable final OnSuccess<X> success,
+                                  @Nullable final OnError error) {
+        Futures.addCallback(future, new FutureCallback<X>() {
             @Override
-            public void run() {
-                try {
-                    final X ret = call.call();
-                    if (success != null) {
-                        mScheduler.schedule(new Runnable() {
-                            @Override
-                            public void run() {
-                                success.run(ret);
-                            }
-                        });
+            public void onSuccess(final X result) {
+                if (success != null) {
+                    mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            success.run(result);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onFailure(@Nonnull Throwable t) {
+                if (t instanceof CancellationException) {
+                    return;
+                }
+                final Exception e = t instanceof Exception ? (Exception) t : new ExecutionException(t);
+                if (error != null) {
+                    mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            error.except(e);
+                        }
+                    });
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Same as {@link #executeAndReturn(Callable, OnSuccess, OnError)} but if call with equal key
+     * is already running, callbacks are attached to it instead of executing call again.
+     * Every attached callback receives the same result.
+     *
+     * @return future of this caller, when futures of all callers are cancelled the call is
+     * cancelled
+     */
+    public <X> ListenableFuture<X> executeAndReturnShared(@Nonnull Object key,
+                                                          @Nonnull final Callable<X> call,
+                                                          @Nullable final OnSuccess<X> success,
+                                                          @Nullable final OnError error) {
+        return executeAndReturnShared(Priority.USER_VISIBLE, key, call, success, error);
+    }
+
+    /**
+     * @param priority priority of call if it is not running yet, call that still waits with lower
+     *                 priority is moved to the deadline of this one
+     * @see #executeAndReturnShared(Object, Callable, OnSuccess, OnError)
+     */
+    public <X> ListenableFuture<X> executeAndReturnShared(@Nonnull Priority priority,
+                                                          @Nonnull Object key,
+                                                          @Nonnull final Callable<X> call,
+                                                          @Nullable final OnSuccess<X> success,
+                                                          @Nullable final OnError error) {
+        checkNotNull(priority, "priority could not be null");
+        checkNotNull(key, "key could not be null");
+        checkNotNull(call, "call could not be null");
+        final SettableFuture<X> handle = SettableFuture.create();
+        addCallbacks(handle, success, error);
+        final SharedCall<X> sharedCall;
+        final boolean joined;
+        synchronized (mSharedCalls) {
+            @SuppressWarnings("unchecked")
+            final SharedCall<X> running = (SharedCall<X>) mSharedCalls.get(key);
+            joined = running != null;
+            sharedCall = joined ? running : new SharedCall<X>(key);
+            sharedCall.attach(handle);
+            if (!joined) {
+                mSharedCalls.put(key, sharedCall);
+            }
+        }
+        // Outside of lock, so call is never run while holding it
+        if (joined) {
+            sharedCall.promote(priority);
+        } else {
+            sharedCall.start(priority, call);
+        }
+        return handle;
+    }
+
+    private class SharedCall<X> implements FutureCallback<X> {
+        @Nonnull
+        private final Object mKey;
+        /**
+         * Futures of callers, guarded by {@link #mSharedCalls}
+         */
+        private final List<SettableFuture<X>> mHandles = Lists.newArrayList();
+        /**
+         * Number of not cancelled callers, guarded by {@link #mSharedCalls}
+         */
+        private int mActive;
+        private volatile boolean mCancelled;
+        @Nullable
+        private volatile ListenableFuture<X> mFuture;
+        /**
+         * Queue entry of call until it is started, guarded by {@link #mSharedCalls}
+         */
+        @Nullable
+        private PrioritizedTask mQueued;
+
+        public SharedCall(@Nonnull Object key) {
+            mKey = key;
+        }
+
+        void attach(@Nonnull final SettableFuture<X> handle) {
+            mHandles.add(handle);
+            mActive += 1;
+            handle.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (handle.isCancelled()) {
+                        detach();
                     }
-                } catch (final Exception e) {
-                    if (error != null) {
-                        mScheduler.schedule(new Runnable() {
-                            @Override
-                            public void run() {
-                                error.except(e);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void detach() {
+            synchronized (mSharedCalls) {
+                mActive -= 1;
+                if (mActive > 0) {
+                    return;
+                }
+                if (mSharedCalls.get(mKey) == this) {
+                    mSharedCalls.remove(mKey);
+                }
+            }
+            mCancelled = true;
+            final ListenableFuture<X> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        void promote(@Nonnull Priority priority) {
+            final PrioritizedTask queued;
+            synchronized (mSharedCalls) {
+                queued = mQueued;
+            }
+            if (queued == null) {
+                return;
+            }
+            final PrioritizedTask promoted = SyncExecutor.this.promote(queued, priority);
+            synchronized (mSharedCalls) {
+                if (mQueued == queued) {
+                    mQueued = promoted;
+                }
+            }
+        }
+
+        void start(@Nonnull Priority priority, @Nonnull final Callable<X> call) {
+            final ListenableFutureTask<X> future = ListenableFutureTask.create(new Callable<X>() {
+                @Override
+                public X call() throws Exception {
+                    synchronized (mSharedCalls) {
+                        mQueued = null;
+                    }
+                    try {
+                        return call.call();
+                    } finally {
+                        // Callers that come after this point will start a new call
+                        synchronized (mSharedCalls) {
+                            if (mSharedCalls.get(mKey) == SharedCall.this) {
+                                mSharedCalls.remove(mKey);
                             }
-                        });
+                        }
                     }
                 }
+            });
+            final PrioritizedTask prioritizedTask = new PrioritizedTask(future,
+                    System.nanoTime() + priority.mAgingNanos, mSequence.getAndIncrement());
+            synchronized (mSharedCalls) {
+                mQueued = prioritizedTask;
             }
-        });
-    }
+            enqueue(prioritizedTask);
+            mFuture = future;
+            if (mCancelled) {
+                future.cancel(true);
+            }
+            Futures.addCallback(future, this, MoreExecutors.directExecutor());
+        }
+
+        @Nonnull
+        private List<SettableFuture<X>> getHandles() {
+            synchronized (mSharedCalls) {
+                return ImmutableList.copyOf(mHandles);
+            }
+        }
 
+        @Override
+        public void onSuccess(X result) {
+            for (SettableFuture<X> handle : getHandles()) {
+                handle.set(result);
+            }
+        }
+
+        @Override
+        public void onFailure(@Nonnull Throwable t) {
+            for (SettableFuture<X> handle : getHandles()) {
+                if (t instanceof CancellationException) {
+                    handle.cancel(false);
+                } else {
+                    handle.setException(t);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Clock, {@link Scheduler} and {@link ListeningExecutorService} that never run anything by
+ * themselves. Time moves only on {@link #advance(long, TimeUnit)} and {@link #sleep(long, TimeUnit)},
+ * queued tasks are run on calling thread by {@link #runPending()}, so tests are fast and
+ * reproducible. Tasks delayed by {@link #schedule(Runnable, long, TimeUnit)} are run when clock
+ * reaches their deadline.
+ *
+ * Pass {@link #getTicker()} to {@link CommandsDescription.Builder#ticker(Ticker)} to control
+ * expiration of cached objects.
+ */
+public class VirtualTime {
+
+    private final Object mLock = new Object();
+    @Nonnull
+    private final Queue<Runnable> mScheduled = new ArrayDeque<>();
+    @Nonnull
+    private final Queue<Runnable> mExecuted = new ArrayDeque<>();
+    @Nonnull
+    private final Queue<DelayedTask> mDelayed = new PriorityQueue<>();
+    private long mNanos;
+    private long mDelayedSequence;
+
+    @Nonnull
+    private final Ticker mTicker = new Ticker() {
+        @Override
+        public long read() {
+            return now();
+        }
+    };
+    @Nonnull
+    private final Scheduler mScheduler = new Scheduler() {
+        @Override
+        public void schedule(@Nonnull Runnable runnable) {
+            synchronized (mLock) {
+                mScheduled.add(checkNotNull(runnable));
+            }
+        }
+    };
+    @Nonnull
+    private final VirtualExecutorService mExecutorService = new VirtualExecutorService();
+
+    @Nonnull
+    public Ticker getTicker() {
+        return mTicker;
+    }
+
+    /**
+     * Scheduler queuing runnables until {@link #runPending()}
+     */
+    @Nonnull
+    public Scheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Executor queuing tasks until {@link #runPending()}
+     */
+    @Nonnull
+    public ListeningExecutorService getExecutorService() {
+        return mExecutorService;
+    }
+
+    /**
+     * @return current time in nanoseconds
+     */
+    public long now() {
+        synchronized (mLock) {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Run runnable when clock reaches now + delay
+     */
+    public void schedule(@Nonnull Runnable runnable, long delay, @Nonnull TimeUnit unit) {
+        checkNotNull(runnable);
+        checkArgument(delay >= 0, "delay could not be negative");
+        synchronized (mLock) {
+            mDelayed.add(new DelayedTask(mNanos + unit.toNanos(delay), mDelayedSequence++, runnable));
+        }
+    }
+
+    /**
+     * Move clock forward and run all tasks that are pending. Delayed tasks are run in order of
+     * their deadlines with clock set to deadline, so tasks they schedule are run in time too.
+     */
+    public void advance(long duration, @Nonnull TimeUnit unit) {
+        checkArgument(duration >= 0, "duration could not be negative");
+        final long target;
+        synchronized (mLock) {
+            target = mNanos + unit.toNanos(duration);
+        }
+        runPending();
+        DelayedTask task;
+        while ((task = pollDelayed(target)) != null) {
+            task.mRunnable.run();
+            runPending();
+        }
+        synchronized (mLock) {
+            mNanos = Math.max(mNanos, target);
+        }
+    }
+
+    /**
+     * Move clock forward without running anything, i.e. to simulate blocking call from task run
+     * by {@link #runPending()}. Delayed tasks that are due run afterwards.
+     */
+    public void sleep(long duration, @Nonnull TimeUnit unit) {
+        checkArgument(duration >= 0, "duration could not be negative");
+        synchronized (mLock) {
+            mNanos += unit.toNanos(duration);
+        }
+    }
+
+    /**
+     * Run executor tasks, scheduled runnables and delayed tasks that are due, including those
+     * queued while running, until nothing is left to run
+     *
+     * @return number of run tasks
+     */
+    public int runPending() {
+        int count = 0;
+        Runnable runnable;
+        while ((runnable = poll()) != null) {
+            runnable.run();
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if nothing waits for {@link #runPending()}, delayed tasks that are not due yet
+     * are not taken into account
+     */
+    public boolean isIdle() {
+        synchronized (mLock) {
+            return mExecuted.isEmpty() && mScheduled.isEmpty() && !isDelayedDue(mNanos);
+        }
+    }
+
+    private Runnable poll() {
+        synchronized (mLock) {
+            // Executor first, so results of a background call are scheduled before they are run
+            final Runnable task = mExecuted.poll();
+            if (task != null) {
+                return task;
+            }
+            final Runnable scheduled = mScheduled.poll();
+            if (scheduled != null) {
+                return scheduled;
+            }
+            return isDelayedDue(mNanos) ? mDelayed.poll().mRunnable : null;
+        }
+    }
+
+    /**
+     * Take first delayed task due before target and move clock to its deadline
+     */
+    private DelayedTask pollDelayed(long target) {
+        synchronized (mLock) {
+            if (!isDelayedDue(target)) {
+                return null;
+            }
+            final DelayedTask task = mDelayed.poll();
+            mNanos = Math.max(mNanos, task.mDeadline);
+            return task;
+        }
+    }
+
+    private boolean isDelayedDue(long nanos) {
+        final DelayedTask task = mDelayed.peek();
+        return task != null && task.mDeadline <= nanos;
+    }
+
+    private static class DelayedTask implements Comparable<DelayedTask> {
+        private final long mDeadline;
+        private final long mSequence;
+        @Nonnull
+        private final Runnable mRunnable;
+
+        DelayedTask(long deadline, long sequence, @Nonnull Runnable runnable) {
+            mDeadline = deadline;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(@Nonnull DelayedTask other) {
+            // Tasks with the same deadline run in order they were scheduled
+            final int byDeadline = Long.compare(mDeadline, other.mDeadline);
+            return byDeadline != 0 ? byDeadline : Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private class VirtualExecutorService extends AbstractListeningExecutorService {
+
+        private boolean mShutdown;
+
+        @Override
+        public void execute(@Nonnull Runnable command) {
+            synchronized (mLock) {
+                if (mShutdown) {
+                    throw new RejectedExecutionException("Executor is shut down");
+                }
+                mExecuted.add(checkNotNull(command));
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (mLock) {
+                mShutdown = true;
+            }
+        }
+
+        @Nonnull
+        @Override
+        public List<Runnable> shutdownNow() {
+            synchronized (mLock) {
+                mShutdown = true;
+                final List<Runnable> tasks = ImmutableList.copyOf(mExecuted);
+                mExecuted.clear();
+                return Lists.newArrayList(tasks);
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (mLock) {
+                return mShutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (mLock) {
+                return mShutdown && mExecuted.isEmpty();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, @Nonnull TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BatchingSchedulerTest {
+
+    private final List<Runnable> mDispatches = Lists.newArrayList();
+    private final AtomicInteger mExecuted = new AtomicInteger();
+    private final Runnable mCounting = new Runnable() {
+        @Override
+        public void run() {
+            mExecuted.incrementAndGet();
+        }
+    };
+    private final Scheduler mDelegate = new Scheduler() {
+        @Override
+        public void schedule(@Nonnull Runnable runnable) {
+            mDispatches.add(runnable);
+        }
+    };
+    /**
+     * Every read takes one millisecond
+     */
+    private final Ticker mTicker = new Ticker() {
+        private long mNanos;
+
+        @Override
+        public long read() {
+            mNanos += TimeUnit.MILLISECONDS.toNanos(1);
+            return mNanos;
+        }
+    };
+
+    private BatchingScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new BatchingScheduler(mDelegate, 5, TimeUnit.MILLISECONDS, mTicker);
+    }
+
+    @Test
+    public void testBurstIsRunInOneDispatch() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mScheduler.schedule(mCounting);
+        }
+        assertThat(mDispatches, hasSize(1));
+
+        mDispatches.remove(0).run();
+
+        assertThat(mExecuted.get(), is(equalTo(3)));
+        assertThat(mDispatches, is(empty()));
+    }
+
+    @Test
+    public void testRunnablesOverBudgetAreRunInNextDispatch() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            mScheduler.schedule(mCounting);
+        }
+
+        mDispatches.remove(0).run();
+
+        assertThat(mExecuted.get(), is(equalTo(5)));
+        assertThat(mDispatches, hasSize(1));
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@SuppressWarnings("unchecked")
+public class CommandsDescriptionTest {
+
+    private static final CommandName<String, String> APPEND = CommandName.of("append");
+    private static final List<CommandName<String, ?>> COMMANDS = ImmutableList.<CommandName<String, ?>>of(APPEND);
+
+    private static final Command<String, String> APPEND_COMMAND = new Command<String, String>() {
+        @Nonnull
+        @Override
+        public UpdateResult<String> apply(@Nullable String parameter, @Nonnull String object) {
+            return UpdateResult.forUpdate(object + parameter);
+        }
+    };
+    private static final CacheCodec<String> STRING_CODEC = new CacheCodec<String>() {
+        @Override
+        public void encode(@Nonnull String object, @Nonnull DataOutput output) throws IOException {
+            output.writeUTF(object);
+        }
+
+        @Nonnull
+        @Override
+        public String decode(@Nonnull DataInput input) throws IOException {
+            return input.readUTF();
+        }
+    };
+
+    private CommandsDescription mCommandsDescription;
+
+    @Before
+    public void setUp() throws Exception {
+        mCommandsDescription = new CommandsDescription();
+        mCommandsDescription.addCommand(APPEND, APPEND_COMMAND);
+    }
+
+    @Test
+    public void testCommandsAreReplayedOnRead() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        mCommandsDescription.putCache(key, "a", COMMANDS);
+        mCommandsDescription.invalidate(APPEND, "b");
+        mCommandsDescription.invalidate(APPEND, "c");
+
+        assertThat(mCommandsDescription.getCacheIfPresent(key), is(equalTo(Optional.of("abc"))));
+    }
+
+    @Test
+    public void testCommandLogIsCompacted() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(key, listener);
+        mCommandsDescription.putCache(key, "", COMMANDS);
+
+        for (int i = 0; i < 10000; i++) {
+            mCommandsDescription.invalidate(APPEND, "x");
+        }
+
+        assertThat(mCommandsDescription.getCommandLogSize(), is(lessThan(100)));
+        assertThat(mCommandsDescription.getCacheIfPresent(key).get().length(), is(equalTo(10000)));
+        mCommandsDescription.unregister(key, listener);
+    }
+
+    @Test
+    public void testCommandLogLimitInvalidatesStaleElements() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        mCommandsDescription.setMaxCommandLogSize(10);
+        mCommandsDescription.putCache(key, "", COMMANDS);
+
+        for (int i = 0; i < 100; i++) {
+            mCommandsDescription.invalidate(APPEND, "x");
+        }
+
+        assertThat(mCommandsDescription.getCommandLogSize(), is(lessThanOrEqualTo(10)));
+        assertThat(mCommandsDescription.getCacheIfPresent(key).isPresent(), is(false));
+    }
+
+    @Test
+    public void testCommandsAreRoutedBySelectedKeys() throws Exception {
+        final CommandName<String, String> appendToFirst = CommandName.of("append_to_first");
+        final CacheKey<String> first = CacheKey.of("first");
+        final CacheKey<String> second = CacheKey.of("second");
+        mCommandsDescription.addCommand(appendToFirst, new Command<String, String>() {
+            @Nonnull
+            @Override
+            public UpdateResult<String> apply(@Nullable String parameter, @Nonnull String object) {
+                return UpdateResult.forUpdate(object + parameter);
+            }
+        }, new CacheKeySelector<String>() {
+            @Nonnull
+            @Override
+            public Selection select(@Nullable String parameter) {
+                return Selection.forKeys(first);
+            }
+        });
+        final List<CommandName<String, ?>> commands = ImmutableList.<CommandName<String, ?>>of(appendToFirst);
+        mCommandsDescription.putCache(first, "a", commands);
+        mCommandsDescription.putCache(second, "a", commands);
+
+        mCommandsDescription.invalidate(appendToFirst, "b");
+
+        assertThat(mCommandsDescription.getCacheIfPresent(first), is(equalTo(Optional.of("ab"))));
+        assertThat(mCommandsDescription.getCacheIfPresent(second), is(equalTo(Optional.of("a"))));
+    }
+
+    @Test
+    public void testReplacedElementIsNotIndexedByOldCommands() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(key, listener);
+        mCommandsDescription.putCache(key, "a", COMMANDS);
+        assertThat(mCommandsDescription.getIndexedKeysSnapshot(APPEND), contains((Object) key));
+
+        mCommandsDescription.putCache(key, "b", ImmutableList.<CommandName<String, ?>>of());
+        mCommandsDescription.invalidate(APPEND, "x");
+
+        assertThat(mCommandsDescription.getIndexedKeysSnapshot(APPEND), is(empty()));
+        assertThat(mCommandsDescription.getCacheIfPresent(key), is(equalTo(Optional.of("b"))));
+        verify(listener).onChanged("a");
+        verify(listener).onChanged("b");
+        verifyNoMoreInteractions(listener);
+        mCommandsDescription.unregister(key, listener);
+    }
+
+    @Test
+    public void testUnregisteredKeyIsNotIndexed() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(key, listener);
+        mCommandsDescription.putCache(key, "a", COMMANDS);
+
+        mCommandsDescription.unregister(key, listener);
+        mCommandsDescription.invalidate(APPEND, "x");
+
+        assertThat(mCommandsDescription.getIndexedKeysSnapshot(APPEND), is(empty()));
+        verify(listener).onChanged("a");
+        verifyNoMoreInteractions(listener);
+        // Not indexed key still gets commands on read
+        assertThat(mCommandsDescription.getCacheIfPresent(key), is(equalTo(Optional.of("ax"))));
+    }
+
+    @Test
+    public void testConcurrentInvalidationsAreNotLost() throws Exception {
+        final CacheKey<String> registered = CacheKey.of("registered");
+        final CacheKey<String> notRegistered = CacheKey.of("not_registered");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(registered, listener);
+        mCommandsDescription.putCache(registered, "", COMMANDS);
+        mCommandsDescription.putCache(notRegistered, "", COMMANDS);
+
+        final int threads = 4;
+        final int commandsPerThread = 1000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < commandsPerThread; j++) {
+                        mCommandsDescription.invalidate(APPEND, "x");
+                        mCommandsDescription.getCacheIfPresent(notRegistered);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(mCommandsDescription.getCacheIfPresent(registered).get().length(),
+                is(equalTo(threads * commandsPerThread)));
+        assertThat(mCommandsDescription.getCacheIfPresent(notRegistered).get().length(),
+                is(equalTo(threads * commandsPerThread)));
+        mCommandsDescription.unregister(registered, listener);
+    }
+
+    @Test
+    public void testReadersRacingWithInvalidationNotifyOnce() throws Exception {
+        final int readers = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final CommandsDescription commandsDescription = new CommandsDescription();
+                commandsDescription.addCommand(APPEND, APPEND_COMMAND);
+                final CacheKey<String> key = CacheKey.of("key");
+                final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+                commandsDescription.register(key, listener);
+                commandsDescription.putCache(key, "a", COMMANDS);
+
+                final CountDownLatch started = new CountDownLatch(readers);
+                final AtomicBoolean stop = new AtomicBoolean();
+                final List<Future<?>> futures = Lists.newArrayList();
+                for (int i = 0; i < readers; i++) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            started.countDown();
+                            while (!stop.get()) {
+                                commandsDescription.getCacheIfPresent(key);
+                            }
+                        }
+                    }));
+                }
+                started.await();
+                commandsDescription.invalidate(APPEND, "b");
+                stop.set(true);
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+
+                verify(listener).onChanged("a");
+                verify(listener).onChanged("ab");
+                verifyNoMoreInteractions(listener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRegisterRacingWithInvalidationRecalculatesHolder() throws Exception {
+        raceWithInvalidation(new RaceOperation() {
+            @Override
+            public void setUp(@Nonnull CommandsDescription commandsDescription,
+                              @Nonnull CacheKey<String> key,
+                              @Nonnull CacheInvalidationListener<String> listener) {
+                commandsDescription.putCache(key, "a", COMMANDS);
+            }
+
+            @Override
+            public void run(@Nonnull CommandsDescription commandsDescription,
+                            @Nonnull CacheKey<String> key,
+                            @Nonnull CacheInvalidationListener<String> listener) {
+                commandsDescription.register(key, listener);
+            }
+        });
+    }
+
+    @Test
+    public void testPutCacheRacingWithInvalidationRecalculatesHolder() throws Exception {
+        raceWithInvalidation(new RaceOperation() {
+            @Override
+            public void setUp(@Nonnull CommandsDescription commandsDescription,
+                              @Nonnull CacheKey<String> key,
+                              @Nonnull CacheInvalidationListener<String> listener) {
+                commandsDescription.register(key, listener);
+            }
+
+            @Override
+            public void run(@Nonnull CommandsDescription commandsDescription,
+                            @Nonnull CacheKey<String> key,
+                            @Nonnull CacheInvalidationListener<String> listener) {
+                commandsDescription.putCache(key, "a", COMMANDS);
+            }
+        });
+    }
+
+    private interface RaceOperation {
+        void setUp(@Nonnull CommandsDescription commandsDescription,
+                   @Nonnull CacheKey<String> key,
+                   @Nonnull CacheInvalidationListener<String> listener);
+
+        void run(@Nonnull CommandsDescription commandsDescription,
+                 @Nonnull CacheKey<String> key,
+                 @Nonnull CacheInvalidationListener<String> listener);
+    }
+
+    /**
+     * Holder that was not recalculated by invalidation keeps weight of stale object, so retained
+     * size has to match the object read afterwards
+     */
+    private void raceWithInvalidation(@Nonnull final RaceOperation operation) throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int round = 0; round < 2000; round++) {
+                final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                        .weigher(String.class, new CacheWeigher<String>() {
+                            @Override
+                            public int weigh(@Nonnull String object) {
+                                return object.length();
+                            }
+                        })
+                        .build();
+                commandsDescription.addCommand(APPEND, APPEND_COMMAND);
+                final CacheKey<String> key = CacheKey.of("key");
+                final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+                operation.setUp(commandsDescription, key, listener);
+
+                final CountDownLatch ready = new CountDownLatch(1);
+                final Future<?> future = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        ready.countDown();
+                        operation.run(commandsDescription, key, listener);
+                    }
+                });
+                ready.await();
+                commandsDescription.invalidate(APPEND, "b");
+                future.get();
+
+                final long retainedSize = commandsDescription.getEstimatedRetainedSize();
+                assertThat(commandsDescription.getCacheIfPresent(key).get().length(),
+                        is(equalTo((int) retainedSize)));
+                commandsDescription.unregister(key, listener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWeightBudgetIncludesPinnedObjects() throws Exception {
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(10)
+                .weigher(String.class, new CacheWeigher<String>() {
+                    @Override
+                    public int weigh(@Nonnull String object) {
+                        return object.length();
+                    }
+                })
+                .build();
+        final CacheKey<String> pinned = CacheKey.of("pinned");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+
+        commandsDescription.putCache(CacheKey.<String>of("first"), "aaaa", COMMANDS);
+        commandsDescription.putCache(CacheKey.<String>of("second"), "bbbbbb", COMMANDS);
+        assertThat(commandsDescription.getEstimatedRetainedSize(), is(equalTo(10L)));
+
+        commandsDescription.register(pinned, listener);
+        commandsDescription.putCache(pinned, "cccccccc", COMMANDS);
+
+        assertThat(commandsDescription.getEstimatedRetainedSize(), is(lessThanOrEqualTo(10L)));
+        assertThat(commandsDescription.getCacheIfPresent(pinned), is(equalTo(Optional.of("cccccccc"))));
+        assertThat(commandsDescription.getCacheIfPresent(CacheKey.<String>of("second")).isPresent(), is(false));
+
+        commandsDescription.unregister(pinned, listener);
+        assertThat(commandsDescription.getEstimatedRetainedSize(), is(lessThanOrEqualTo(10L)));
+        assertThat(commandsDescription.getCacheIfPresent(pinned), is(equalTo(Optional.of("cccccccc"))));
+    }
+
+    @Test
+    public void testPinnedObjectsEvictLeastRecentlyUsedObjects() throws Exception {
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(10)
+                .weigher(String.class, new CacheWeigher<String>() {
+                    @Override
+                    public int weigh(@Nonnull String object) {
+                        return object.length();
+                    }
+                })
+                .build();
+        for (int i = 0; i < 10; i++) {
+            commandsDescription.putCache(CacheKey.<String>of("k" + i), String.valueOf(i), COMMANDS);
+        }
+        for (int i = 0; i < 3; i++) {
+            commandsDescription.getCacheIfPresent(CacheKey.<String>of("k" + i));
+        }
+        final CacheKey<String> pinned = CacheKey.of("pinned");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+
+        commandsDescription.register(pinned, listener);
+        commandsDescription.putCache(pinned, "pppp", COMMANDS);
+
+        for (int i = 0; i < 10; i++) {
+            final boolean evicted = i >= 3 && i < 7;
+            assertThat("k" + i, commandsDescription.getCacheIfPresent(CacheKey.<String>of("k" + i)).isPresent(),
+                    is(!evicted));
+        }
+        commandsDescription.unregister(pinned, listener);
+    }
+
+    @Test
+    public void testEvictedObjectsAreRestoredFromDisk() throws Exception {
+        final File file = File.createTempFile("disk-cache", null);
+        file.deleteOnExit();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(1)
+                .diskCache(file, 4096)
+                .codec(String.class, STRING_CODEC)
+                .build();
+        commandsDescription.addCommand(APPEND, APPEND_COMMAND);
+        final CacheKey<String> first = CacheKey.of("first");
+
+        commandsDescription.putCache(first, "a", COMMANDS);
+        commandsDescription.putCache(CacheKey.<String>of("second"), "b", COMMANDS);
+        commandsDescription.invalidate(APPEND, "x");
+
+        assertThat(commandsDescription.getCacheIfPresent(first), is(equalTo(Optional.of("ax"))));
+    }
+
+    @Test
+    public void testExpiredDiskRecordsAreNotRestored() throws Exception {
+        final File file = File.createTempFile("disk-cache", null);
+        file.deleteOnExit();
+        final VirtualTime time = new VirtualTime();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(1)
+                .diskCache(file, 4096)
+                .codec(String.class, STRING_CODEC)
+                .ticker(time.getTicker())
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build();
+        final CacheKey<String> first = CacheKey.of("first");
+        commandsDescription.putCache(first, "a", COMMANDS);
+        commandsDescription.putCache(CacheKey.<String>of("second"), "b", COMMANDS);
+
+        time.advance(2, TimeUnit.MINUTES);
+
+        assertThat(commandsDescription.getCacheIfPresent(first), is(equalTo(Optional.<String>absent())));
+    }
+
+    @Test
+    public void testUnreadDiskRecordsDoNotKeepCommandLog() throws Exception {
+        final File file = File.createTempFile("disk-cache", null);
+        file.deleteOnExit();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .maximumWeight(1)
+                .diskCache(file, 4096)
+                .codec(String.class, STRING_CODEC)
+                .build();
+        commandsDescription.addCommand(APPEND, APPEND_COMMAND);
+        final CacheKey<String> second = CacheKey.of("second");
+        commandsDescription.putCache(CacheKey.<String>of("first"), "a", COMMANDS);
+        commandsDescription.putCache(second, "b", ImmutableList.<CommandName<String, ?>>of());
+
+        for (int i = 0; i < 10000; i++) {
+            commandsDescription.invalidate(APPEND, "x");
+            // Keep object in memory up to date, so only disk record could keep log
+            commandsDescription.getCacheIfPresent(second);
+        }
+
+        assertThat(commandsDescription.getCommandLogSize(), is(lessThan(2048)));
+    }
+
+    @Test
+    public void testSnapshotIsRestoredAndCommandsAreReplayed() throws Exception {
+        final File file = File.createTempFile("snapshot", null);
+        file.deleteOnExit();
+        final CacheKey<String> key = CacheKey.of("key");
+        final CommandsDescription writer = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .build();
+        writer.addCommand(APPEND, APPEND_COMMAND);
+        writer.putCache(key, "a", COMMANDS);
+        writer.invalidate(APPEND, "x");
+        writer.writeSnapshot(file);
+
+        final CommandsDescription reader = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .build();
+        reader.addCommand(APPEND, APPEND_COMMAND);
+        reader.restoreSnapshot(file);
+        reader.invalidate(APPEND, "y");
+
+        assertThat(reader.getCacheIfPresent(key), is(equalTo(Optional.of("axy"))));
+        assertThat(reader.getCacheIfPresent(CacheKey.<String>of("other")), is(equalTo(Optional.<String>absent())));
+    }
+
+    @Test
+    public void testUnreadSnapshotDoesNotKeepCommandLog() throws Exception {
+        final File file = File.createTempFile("snapshot", null);
+        file.deleteOnExit();
+        final CommandsDescription writer = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .build();
+        writer.putCache(CacheKey.<String>of("unread"), "a", COMMANDS);
+        writer.writeSnapshot(file);
+        final CommandsDescription reader = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .build();
+        reader.addCommand(APPEND, APPEND_COMMAND);
+        reader.restoreSnapshot(file);
+
+        for (int i = 0; i < 10000; i++) {
+            reader.invalidate(APPEND, "x");
+        }
+
+        assertThat(reader.getCommandLogSize(), is(lessThan(2048)));
+    }
+
+    @Test
+    public void testExpiredSnapshotRecordsAreNotRestored() throws Exception {
+        final File file = File.createTempFile("snapshot", null);
+        file.deleteOnExit();
+        final VirtualTime time = new VirtualTime();
+        final CacheKey<String> key = CacheKey.of("key");
+        final CommandsDescription writer = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .ticker(time.getTicker())
+                .build();
+        writer.putCache(key, "a", COMMANDS);
+        writer.writeSnapshot(file);
+        time.advance(2, TimeUnit.MINUTES);
+
+        final CommandsDescription reader = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .ticker(time.getTicker())
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build();
+        reader.restoreSnapshot(file);
+
+        assertThat(reader.getCacheIfPresent(key), is(equalTo(Optional.<String>absent())));
+    }
+
+    @Test
+    public void testWritingSnapshotDoesNotNotifyListeners() throws Exception {
+        final File file = File.createTempFile("snapshot", null);
+        file.deleteOnExit();
+        final CacheKey<String> key = CacheKey.of("key");
+        final CommandsDescription writer = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .recalculation(CommandsDescription.Recalculation.LAZY)
+                .build();
+        writer.addCommand(APPEND, APPEND_COMMAND);
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        writer.register(key, listener);
+        writer.putCache(key, "a", COMMANDS);
+        verify(listener).onChanged("a");
+        writer.setListenerActive(key, listener, false);
+        writer.invalidate(APPEND, "b");
+
+        writer.writeSnapshot(file);
+
+        verifyNoMoreInteractions(listener);
+        final CommandsDescription reader = new CommandsDescription.Builder()
+                .codec(String.class, STRING_CODEC)
+                .build();
+        reader.addCommand(APPEND, APPEND_COMMAND);
+        reader.restoreSnapshot(file);
+        assertThat(reader.getCacheIfPresent(key), is(equalTo(Optional.of("ab"))));
+        writer.unregister(key, listener);
+    }
+
+    @Test
+    public void testFreshnessIsCheckedAgainstPolicy() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        mCommandsDescription.putCache(key, "a", COMMANDS);
+        mCommandsDescription.invalidate(APPEND, "x");
+
+        assertThat(mCommandsDescription.getFreshness(key, FreshnessPolicy.of(1, 0, TimeUnit.HOURS)),
+                is(equalTo(FreshnessPolicy.Freshness.FRESH)));
+        assertThat(mCommandsDescription.getFreshness(key, FreshnessPolicy.of(0, 1, TimeUnit.HOURS)),
+                is(equalTo(FreshnessPolicy.Freshness.STALE)));
+        assertThat(mCommandsDescription.getFreshness(key, FreshnessPolicy.of(0, 0, TimeUnit.HOURS)),
+                is(equalTo(FreshnessPolicy.Freshness.EXPIRED)));
+        assertThat(mCommandsDescription.getFreshness(CacheKey.of("other"), FreshnessPolicy.ALWAYS_FRESH),
+                is(equalTo(FreshnessPolicy.Freshness.EXPIRED)));
+    }
+
+    @Test
+    public void testObjectsExpireOnVirtualTime() throws Exception {
+        final VirtualTime time = new VirtualTime();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .ticker(time.getTicker())
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .build();
+        final CacheKey<String> key = CacheKey.of("key");
+        final FreshnessPolicy policy = FreshnessPolicy.of(1, 1, TimeUnit.MINUTES);
+        commandsDescription.putCache(key, "a", COMMANDS);
+
+        time.advance(90, TimeUnit.SECONDS);
+        assertThat(commandsDescription.getFreshness(key, policy), is(equalTo(FreshnessPolicy.Freshness.STALE)));
+
+        time.advance(1, TimeUnit.HOURS);
+        assertThat(commandsDescription.getCacheIfPresent(key), is(equalTo(Optional.<String>absent())));
+    }
+
+    @Test
+    public void testDerivedKeyIsComputedOnlyWhenSourceChanges() throws Exception {
+        final CacheKey<String> first = CacheKey.of("first");
+        final CacheKey<String> second = CacheKey.of("second");
+        final CacheKey<Integer> length = CacheKey.of("length");
+        final AtomicInteger derivations = new AtomicInteger();
+        mCommandsDescription.addDerived(length, ImmutableList.of(first, second), new Derivation<Integer>() {
+            @Nonnull
+            @Override
+            public Optional<Integer> derive(@Nonnull Sources sources) {
+                derivations.incrementAndGet();
+                final Optional<String> firstObject = sources.get(first);
+                final Optional<String> secondObject = sources.get(second);
+                if (!firstObject.isPresent() || !secondObject.isPresent()) {
+                    return Optional.absent();
+                }
+                return Optional.of(firstObject.get().length() + secondObject.get().length());
+            }
+        });
+        final CacheInvalidationListener<Integer> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(length, listener);
+        mCommandsDescription.putCache(first, "a", COMMANDS);
+        verify(listener).onInvalidated();
+        mCommandsDescription.putCache(second, "b", ImmutableList.<CommandName<String, ?>>of());
+        verify(listener).onChanged(2);
+
+        assertThat(mCommandsDescription.getCacheIfPresent(length), is(equalTo(Optional.of(2))));
+        assertThat(mCommandsDescription.getCacheIfPresent(length), is(equalTo(Optional.of(2))));
+        assertThat(derivations.get(), is(equalTo(2)));
+
+        mCommandsDescription.invalidate(APPEND, "x");
+        verify(listener).onChanged(3);
+        assertThat(mCommandsDescription.getCacheIfPresent(length), is(equalTo(Optional.of(3))));
+        assertThat(derivations.get(), is(equalTo(3)));
+
+        mCommandsDescription.unregister(length, listener);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testLazyRecalculationSkipsInactiveListeners() throws Exception {
+        final AtomicInteger applied = new AtomicInteger();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .recalculation(CommandsDescription.Recalculation.LAZY)
+                .build();
+        commandsDescription.addCommand(APPEND, new Command<String, String>() {
+            @Nonnull
+            @Override
+            public UpdateResult<String> apply(@Nullable String parameter, @Nonnull String object) {
+                applied.incrementAndGet();
+                return APPEND_COMMAND.apply(parameter, object);
+            }
+        });
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        commandsDescription.register(key, listener);
+        commandsDescription.putCache(key, "a", COMMANDS);
+        verify(listener).onChanged("a");
+        commandsDescription.setListenerActive(key, listener, false);
+
+        commandsDescription.invalidate(APPEND, "b");
+        commandsDescription.invalidate(APPEND, "c");
+
+        assertThat(applied.get(), is(equalTo(0)));
+        verifyNoMoreInteractions(listener);
+
+        commandsDescription.setListenerActive(key, listener, true);
+
+        verify(listener).onChanged("abc");
+        assertThat(applied.get(), is(equalTo(2)));
+
+        commandsDescription.invalidate(APPEND, "d");
+
+        verify(listener).onChanged("abcd");
+        commandsDescription.unregister(key, listener);
+    }
+
+    @Test
+    public void testTransactionNotifiesListenersOnce() throws Exception {
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.putCache(key, "a", COMMANDS);
+        mCommandsDescription.register(key, listener);
+
+        mCommandsDescription.beginTransaction()
+                .invalidate(APPEND, "x")
+                .putCache(CacheKey.<String>of("other"), "b", COMMANDS)
+                .invalidate(APPEND, "y")
+                .commit();
+
+        verify(listener).onChanged("axy");
+        verifyNoMoreInteractions(listener);
+        assertThat(mCommandsDescription.getCacheIfPresent(CacheKey.<String>of("other")),
+                is(equalTo(Optional.of("by"))));
+    }
+
+    @Test
+    public void testConsecutiveBatchCommandsAreAppliedAtOnce() throws Exception {
+        final CommandName<String, String> batchAppend = CommandName.of("batch_append");
+        final List<List<String>> batches = Lists.newArrayList();
+        mCommandsDescription.addCommand(batchAppend, new BatchCommand<String, String>() {
+            @Nonnull
+            @Override
+            public UpdateResult<String> apply(@Nullable String parameter, @Nonnull String object) {
+                return applyAll(Lists.newArrayList(parameter), object);
+            }
+
+            @Nonnull
+            @Override
+            public UpdateResult<String> applyAll(@Nonnull List<String> parameters, @Nonnull String object) {
+                batches.add(parameters);
+                return UpdateResult.forUpdate(object + Joiner.on("").join(parameters));
+            }
+        });
+        final CacheKey<String> key = CacheKey.of("key");
+        mCommandsDescription.putCache(key, "a",
+                ImmutableList.<CommandName<String, ?>>of(APPEND, batchAppend));
+
+        mCommandsDescription.beginTransaction()
+                .invalidate(batchAppend, "x")
+                .invalidate(batchAppend, "y")
+                .invalidate(APPEND, "-")
+                .invalidate(batchAppend, "z")
+                .commit();
+
+        assertThat(mCommandsDescription.getCacheIfPresent(key), is(equalTo(Optional.of("axy-z"))));
+        assertThat(batches, contains(contains("x", "y"), contains("z")));
+    }
+
+    @Test
+    public void testDeltasAreDeliveredToDeltaListeners() throws Exception {
+        final CommandName<String, String> prepend = CommandName.of("prepend");
+        mCommandsDescription.addCommand(prepend, new Command<String, String>() {
+            @Nonnull
+            @Override
+            public UpdateResult<String> apply(@Nullable String parameter, @Nonnull String object) {
+                return UpdateResult.forUpdate(parameter + object, ChangeDelta.inserted(0, 1));
+            }
+        });
+        final CacheKey<String> key = CacheKey.of("key");
+        final DeltaCacheInvalidationListener<String> listener = mock(DeltaCacheInvalidationListener.class);
+        mCommandsDescription.register(key, listener);
+        mCommandsDescription.putCache(key, "a", ImmutableList.<CommandName<String, ?>>of(prepend, APPEND));
+        verify(listener).onChanged("a", null);
+
+        mCommandsDescription.beginTransaction()
+                .invalidate(prepend, "x")
+                .invalidate(prepend, "y")
+                .commit();
+        final ArgumentCaptor<ChangeDelta> captor = ArgumentCaptor.forClass(ChangeDelta.class);
+        verify(listener).onChanged(eq("yxa"), captor.capture());
+        assertThat(captor.getValue().getOperations(), hasSize(2));
+        assertThat(captor.getValue().getNewPosition(0), is(equalTo(2)));
+
+        mCommandsDescription.invalidate(APPEND, "z");
+        verify(listener).onChanged("yxaz", null);
+    }
+
+    @Test
+    public void testMetricsAreReported() throws Exception {
+        final CacheMetricsListener metrics = mock(CacheMetricsListener.class);
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .metricsListener(metrics)
+                .build();
+        commandsDescription.addCommand(APPEND, APPEND_COMMAND);
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheKey<String> missing = CacheKey.of("missing");
+
+        commandsDescription.putCache(key, "a", COMMANDS);
+        commandsDescription.invalidate(APPEND, "x");
+        commandsDescription.invalidate(APPEND, "y");
+        commandsDescription.getCacheIfPresent(key);
+        commandsDescription.getCacheIfPresent(missing);
+
+        verify(metrics).onCommandAdded(APPEND, 2);
+        verify(metrics).onReplay(eq(key), eq(2), anyLong(), eq(false));
+        verify(metrics).onHit(key);
+        verify(metrics).onMiss(missing);
+    }
+
+    @Test
+    public void testEvictionsForPinnedObjectsAreReported() throws Exception {
+        final CacheMetricsListener metrics = mock(CacheMetricsListener.class);
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .metricsListener(metrics)
+                .maximumWeight(2)
+                .build();
+        final CacheKey<String> key = CacheKey.of("key");
+        final CacheKey<String> pinned = CacheKey.of("pinned");
+        final CacheInvalidationListener<String> listener = mock(CacheInvalidationListener.class);
+        commandsDescription.putCache(key, "a", COMMANDS);
+        commandsDescription.putCache(CacheKey.<String>of("other"), "b", COMMANDS);
+
+        commandsDescription.register(pinned, listener);
+        commandsDescription.putCache(pinned, "c", COMMANDS);
+
+        verify(metrics).onEviction(key);
+        commandsDescription.unregister(pinned, listener);
+    }
+}
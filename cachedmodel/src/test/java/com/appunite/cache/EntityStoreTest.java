@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@SuppressWarnings("unchecked")
+public class EntityStoreTest {
+
+    private static final Function<String, EntityKey<String>> BY_FIRST_LETTER = new Function<String, EntityKey<String>>() {
+        @Nonnull
+        @Override
+        public EntityKey<String> apply(@Nonnull String input) {
+            return EntityKey.of(String.class, input.substring(0, 1));
+        }
+    };
+
+    private CommandsDescription mCommandsDescription;
+    private EntityStore mEntityStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mCommandsDescription = new CommandsDescription();
+        mEntityStore = new EntityStore(mCommandsDescription);
+    }
+
+    @Test
+    public void testUpdateNotifiesEveryDependentObject() throws Exception {
+        final CacheKey<List<EntityKey<String>>> first = CacheKey.of("first");
+        final CacheKey<List<EntityKey<String>>> second = CacheKey.of("second");
+        final List<EntityKey<String>> firstKeys = mEntityStore.putAll(first, ImmutableList.of("a1", "b1"), BY_FIRST_LETTER);
+        final List<EntityKey<String>> secondKeys = mEntityStore.putAll(second, ImmutableList.of("b1"), BY_FIRST_LETTER);
+        mCommandsDescription.putCache(first, firstKeys, ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+        mCommandsDescription.putCache(second, secondKeys, ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+        final CacheInvalidationListener<List<EntityKey<String>>> firstListener = mock(CacheInvalidationListener.class);
+        final CacheInvalidationListener<List<EntityKey<String>>> secondListener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(first, firstListener);
+        mCommandsDescription.register(second, secondListener);
+
+        assertThat(mEntityStore.update(EntityKey.of(String.class, "a"), "a2"), is(equalTo(true)));
+
+        verify(firstListener).onChanged(firstKeys);
+        verifyZeroInteractions(secondListener);
+        assertThat(mEntityStore.getAll(firstKeys), contains("a2", "b1"));
+        assertThat(mEntityStore.size(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testUpdateDeliversUnknownDelta() throws Exception {
+        final CacheKey<List<EntityKey<String>>> key = CacheKey.of("key");
+        final List<EntityKey<String>> keys = mEntityStore.putAll(key, ImmutableList.of("a1", "b1"), BY_FIRST_LETTER);
+        final DeltaCacheInvalidationListener<List<EntityKey<String>>> listener = mock(DeltaCacheInvalidationListener.class);
+        mCommandsDescription.register(key, listener);
+        mCommandsDescription.putCache(key, keys, ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+
+        mEntityStore.update(EntityKey.of(String.class, "b"), "b2");
+
+        final ArgumentCaptor<ChangeDelta> captor = ArgumentCaptor.forClass(ChangeDelta.class);
+        verify(listener, times(2)).onChanged(eq(keys), captor.capture());
+        // Rows showing updated entity should be bound again
+        assertThat(captor.getAllValues().get(1), is(nullValue()));
+        mCommandsDescription.unregister(key, listener);
+    }
+
+    @Test
+    public void testEntitiesAreDroppedWhenNotReferenced() throws Exception {
+        final CacheKey<List<EntityKey<String>>> first = CacheKey.of("first");
+        final CacheKey<List<EntityKey<String>>> second = CacheKey.of("second");
+        mEntityStore.putAll(first, ImmutableList.of("a1", "b1"), BY_FIRST_LETTER);
+        mEntityStore.putAll(second, ImmutableList.of("b1"), BY_FIRST_LETTER);
+
+        mEntityStore.release(first);
+
+        assertThat(mEntityStore.get(EntityKey.of(String.class, "a")), is(equalTo(Optional.<String>absent())));
+        assertThat(mEntityStore.get(EntityKey.of(String.class, "b")), is(equalTo(Optional.of("b1"))));
+        assertThat(mEntityStore.update(EntityKey.of(String.class, "a"), "a2"), is(equalTo(false)));
+    }
+
+    @Test
+    public void testPutReplacingEntityNotifiesOtherDependents() throws Exception {
+        final CacheKey<List<EntityKey<String>>> first = CacheKey.of("first");
+        final CacheKey<List<EntityKey<String>>> second = CacheKey.of("second");
+        final List<EntityKey<String>> firstKeys = mEntityStore.putAll(first, ImmutableList.of("a1", "b1"), BY_FIRST_LETTER);
+        final List<EntityKey<String>> secondKeys = mEntityStore.putAll(second, ImmutableList.of("b1"), BY_FIRST_LETTER);
+        mCommandsDescription.putCache(first, firstKeys, ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+        mCommandsDescription.putCache(second, secondKeys, ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+        final CacheInvalidationListener<List<EntityKey<String>>> firstListener = mock(CacheInvalidationListener.class);
+        final CacheInvalidationListener<List<EntityKey<String>>> secondListener = mock(CacheInvalidationListener.class);
+        mCommandsDescription.register(first, firstListener);
+        mCommandsDescription.register(second, secondListener);
+
+        mEntityStore.put(second, EntityKey.of(String.class, "a"), "a1");
+        verifyZeroInteractions(firstListener);
+
+        mEntityStore.put(second, EntityKey.of(String.class, "b"), "b2");
+
+        verify(firstListener).onChanged(firstKeys);
+        verifyZeroInteractions(secondListener);
+        assertThat(mEntityStore.getAll(firstKeys), contains("a1", "b2"));
+    }
+
+    @Test
+    public void testExpiredObjectReleasesEntities() throws Exception {
+        final VirtualTime time = new VirtualTime();
+        final CommandsDescription commandsDescription = new CommandsDescription.Builder()
+                .ticker(time.getTicker())
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .build();
+        final EntityStore entityStore = new EntityStore(commandsDescription);
+        final CacheKey<List<EntityKey<String>>> expiring = CacheKey.of("expiring");
+        final CacheKey<List<EntityKey<String>>> registered = CacheKey.of("registered");
+        final CacheInvalidationListener<List<EntityKey<String>>> listener = mock(CacheInvalidationListener.class);
+        commandsDescription.register(registered, listener);
+        commandsDescription.putCache(expiring, entityStore.putAll(expiring, ImmutableList.of("a1", "b1"), BY_FIRST_LETTER),
+                ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+        commandsDescription.putCache(registered, entityStore.putAll(registered, ImmutableList.of("b1"), BY_FIRST_LETTER),
+                ImmutableList.<CommandName<List<EntityKey<String>>, ?>>of());
+
+        time.advance(2, TimeUnit.HOURS);
+        commandsDescription.cleanUp();
+
+        // Entity of registered object is kept
+        assertThat(entityStore.get(EntityKey.of(String.class, "a")), is(equalTo(Optional.<String>absent())));
+        assertThat(entityStore.get(EntityKey.of(String.class, "b")), is(equalTo(Optional.of("b1"))));
+        commandsDescription.unregister(registered, listener);
+    }
+}
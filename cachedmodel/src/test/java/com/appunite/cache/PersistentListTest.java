@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PersistentListTest {
+
+    @Test
+    public void testAppendAndPrepend() throws Exception {
+        PersistentList<Integer> list = PersistentList.of();
+        for (int i = 0; i < 100; i++) {
+            list = list.append(i).prepend(-i - 1);
+        }
+
+        assertThat(list, hasSize(200));
+        assertThat(list.get(0), is(equalTo(-100)));
+        assertThat(list.get(199), is(equalTo(99)));
+        assertThat(list.subList(99, 101), contains(-1, 0));
+    }
+
+    @Test
+    public void testOlderVersionsAreNotChanged() throws Exception {
+        final PersistentList<String> base = PersistentList.copyOf(ImmutableList.of("a", "b"));
+        final PersistentList<String> first = base.append("c");
+        final PersistentList<String> second = base.appendAll(ImmutableList.of("x", "y"));
+        final PersistentList<String> third = base.prependAll(ImmutableList.of("1", "2"));
+
+        assertThat(base, contains("a", "b"));
+        assertThat(first, contains("a", "b", "c"));
+        assertThat(second, contains("a", "b", "x", "y"));
+        assertThat(third, contains("1", "2", "a", "b"));
+        assertThat(first.append("d"), contains("a", "b", "c", "d"));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullElementsAreNotAllowed() throws Exception {
+        PersistentList.<String>of().append(null);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@SuppressWarnings("unchecked")
+public class SyncExecutorTest {
+
+    private ListeningExecutorService mExecutorService;
+    private SyncExecutor mSyncExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+        mSyncExecutor = new SyncExecutor(mExecutorService, new SameThreadScheduler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void testSharedCallsAreExecutedOnce() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> call = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "data";
+            }
+        };
+        final SyncExecutor.Method<String> first = mock(SyncExecutor.Method.class);
+        final SyncExecutor.Method<String> second = mock(SyncExecutor.Method.class);
+
+        mSyncExecutor.executeAndReturnShared("key", call, first, first);
+        started.await(1, TimeUnit.SECONDS);
+        mSyncExecutor.executeAndReturnShared("key", call, second, second);
+        release.countDown();
+
+        verify(first, timeout(1000)).run("data");
+        verify(second, timeout(1000)).run("data");
+        assertThat(calls.get(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testSharedCallIsCancelledWhenAllCallersCancel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final Callable<String> call = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return "data";
+            }
+        };
+        final SyncExecutor.Method<String> method = mock(SyncExecutor.Method.class);
+
+        final ListenableFuture<String> first = mSyncExecutor.executeAndReturnShared("key", call, method, method);
+        started.await(1, TimeUnit.SECONDS);
+        final ListenableFuture<String> second = mSyncExecutor.executeAndReturnShared("key", call, method, method);
+
+        first.cancel(true);
+        assertThat(interrupted.getCount(), is(equalTo(1L)));
+        second.cancel(true);
+
+        assertThat(interrupted.await(1, TimeUnit.SECONDS), is(equalTo(true)));
+        verifyZeroInteractions(method);
+    }
+
+    @Test
+    public void testCallsAreRunOnlyWhenVirtualTimeRunsThem() throws Exception {
+        final VirtualTime time = new VirtualTime();
+        final SyncExecutor syncExecutor = new SyncExecutor(time.getExecutorService(), time.getScheduler());
+        final SyncExecutor.Method<String> success = mock(SyncExecutor.Method.class);
+        final SyncExecutor.Method<Exception> error = mock(SyncExecutor.Method.class);
+
+        syncExecutor.executeAndReturn(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "data";
+            }
+        }, success, error);
+        verifyZeroInteractions(success);
+
+        time.runPending();
+
+        verify(success).run("data");
+        verifyZeroInteractions(error);
+        assertThat(time.isIdle(), is(equalTo(true)));
+    }
+
+    @Test
+    public void testMoreImportantCallsAreExecutedFirst() throws Exception {
+        final ListeningExecutorService singleThread = MoreExecutors.listeningDecorator(
+                Executors.newSingleThreadExecutor());
+        final SyncExecutor syncExecutor = new SyncExecutor(singleThread, new SameThreadScheduler());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        try {
+            syncExecutor.executeAndReturn(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return release.await(1, TimeUnit.SECONDS);
+                }
+            }, null);
+            syncExecutor.executeAndReturn(SyncExecutor.Priority.BACKGROUND_REFRESH, recording(order, "background"), null, null);
+            syncExecutor.executeAndReturn(SyncExecutor.Priority.PREFETCH, recording(order, "prefetch"), null, null);
+            syncExecutor.executeAndReturn(SyncExecutor.Priority.USER_VISIBLE, recording(order, "visible"), null, null);
+            release.countDown();
+        } finally {
+            singleThread.shutdown();
+        }
+
+        assertThat(singleThread.awaitTermination(1, TimeUnit.SECONDS), is(equalTo(true)));
+        assertThat(order, contains("visible", "prefetch", "background"));
+    }
+
+    @Test
+    public void testJoiningQueuedSharedCallRaisesItsPriority() throws Exception {
+        final ListeningExecutorService singleThread = MoreExecutors.listeningDecorator(
+                Executors.newSingleThreadExecutor());
+        final SyncExecutor syncExecutor = new SyncExecutor(singleThread, new SameThreadScheduler());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        try {
+            syncExecutor.executeAndReturn(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return release.await(1, TimeUnit.SECONDS);
+                }
+            }, null);
+            syncExecutor.executeAndReturnShared(SyncExecutor.Priority.BACKGROUND_REFRESH, "key",
+                    recording(order, "shared"), null, null);
+            syncExecutor.executeAndReturn(SyncExecutor.Priority.PREFETCH, recording(order, "prefetch"), null, null);
+            syncExecutor.executeAndReturnShared(SyncExecutor.Priority.USER_VISIBLE, "key",
+                    recording(order, "shared again"), null, null);
+            release.countDown();
+        } finally {
+            singleThread.shutdown();
+        }
+
+        assertThat(singleThread.awaitTermination(1, TimeUnit.SECONDS), is(equalTo(true)));
+        assertThat(order, contains("shared", "prefetch"));
+    }
+
+    private static Callable<String> recording(final List<String> order, final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    @Test
+    public void testLimiterBoundsRunningCalls() throws Exception {
+        final SyncExecutor syncExecutor = new SyncExecutor(mExecutorService, new SameThreadScheduler(),
+                new AimdLimiter.Builder().initialLimit(1).limits(1, 1).build(), Ticker.systemTicker());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(4);
+        final Callable<Integer> call = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                final int now = running.incrementAndGet();
+                maxRunning.set(Math.max(maxRunning.get(), now));
+                Thread.sleep(20);
+                running.decrementAndGet();
+                finished.countDown();
+                return now;
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            syncExecutor.executeAndReturn(call, null);
+        }
+
+        assertThat(finished.await(1, TimeUnit.SECONDS), is(equalTo(true)));
+        assertThat(maxRunning.get(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testAimdLimiterAdaptsToLatency() throws Exception {
+        final AimdLimiter limiter = new AimdLimiter.Builder()
+                .initialLimit(4)
+                .limits(1, 8)
+                .latencyThreshold(100, TimeUnit.MILLISECONDS)
+                .backoffRatio(0.5)
+                .build();
+        final long fast = TimeUnit.MILLISECONDS.toNanos(10);
+        final long slow = TimeUnit.MILLISECONDS.toNanos(500);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(fast, false, limiter.getLimit());
+        }
+        assertThat(limiter.getLimit(), is(equalTo(8)));
+
+        limiter.onSample(slow, false, limiter.getLimit());
+        assertThat(limiter.getLimit(), is(equalTo(4)));
+
+        limiter.onSample(fast, true, limiter.getLimit());
+        assertThat(limiter.getLimit(), is(equalTo(2)));
+
+        limiter.onSample(fast, false, 0);
+        assertThat(limiter.getLimit(), is(equalTo(2)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appunite.cache;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class VirtualTimeTest {
+
+    private VirtualTime mTime;
+    private List<String> mRun;
+
+    @Before
+    public void setUp() throws Exception {
+        mTime = new VirtualTime();
+        mRun = Lists.newArrayList();
+    }
+
+    @Test
+    public void testDelayedTasksRunInDeadlineOrder() throws Exception {
+        mTime.schedule(record("third"), 3, TimeUnit.SECONDS);
+        mTime.schedule(record("first"), 1, TimeUnit.SECONDS);
+        mTime.schedule(record("second"), 2, TimeUnit.SECONDS);
+        mTime.schedule(record("second again"), 2, TimeUnit.SECONDS);
+
+        mTime.advance(2, TimeUnit.SECONDS);
+        assertThat(mRun, contains("first@1000", "second@2000", "second again@2000"));
+
+        mTime.advance(1, TimeUnit.SECONDS);
+        assertThat(mRun, hasItem("third@3000"));
+        assertThat(mTime.now(), is(equalTo(TimeUnit.SECONDS.toNanos(3))));
+    }
+
+    @Test
+    public void testTaskScheduledByDelayedTaskRunsInSameAdvance() throws Exception {
+        mTime.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mTime.schedule(record("nested"), 1, TimeUnit.SECONDS);
+            }
+        }, 1, TimeUnit.SECONDS);
+
+        mTime.advance(5, TimeUnit.SECONDS);
+
+        assertThat(mRun, contains("nested@2000"));
+        assertThat(mTime.now(), is(equalTo(TimeUnit.SECONDS.toNanos(5))));
+    }
+
+    @Test
+    public void testSleepReleasesDueTasksOnRunPending() throws Exception {
+        mTime.schedule(record("delayed"), 1, TimeUnit.SECONDS);
+        mTime.getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                mTime.sleep(1, TimeUnit.SECONDS);
+            }
+        });
+        assertThat(mTime.isIdle(), is(equalTo(false)));
+
+        mTime.runPending();
+
+        assertThat(mRun, contains("delayed@1000"));
+        assertThat(mTime.isIdle(), is(equalTo(true)));
+    }
+
+    @Nonnull
+    private Runnable record(@Nonnull final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRun.add(name + "@" + TimeUnit.NANOSECONDS.toMillis(mTime.now()));
+            }
+        };
+    }
+}
@@ -18,13 +18,10 @@ package com.example.api;
 
 import com.appunite.cache.SyncExecutor;
 import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
 import com.example.api.internal.SimpleExecutorManager;
-import com.example.api.model.Comment;
 import com.example.api.model.ResponseComment;
 
-import java.io.IOException;
-import java.util.Random;
-
 import javax.annotation.Nonnull;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -36,11 +33,14 @@ public class AddCommentExecutorManager extends SimpleExecutorManager<ResponseCom
     private String mPostGuid;
 
     private final ExampleDescription mExampleDescription;
+    private final FakeServer mFakeServer;
 
     public AddCommentExecutorManager(@Nonnull SyncExecutor syncExecutor,
-                                     @Nonnull ExampleDescription exampleDescription) {
+                                     @Nonnull ExampleDescription exampleDescription,
+                                     @Nonnull FakeServer fakeServer) {
         super(syncExecutor);
         mExampleDescription = checkNotNull(exampleDescription);
+        mFakeServer = checkNotNull(fakeServer);
     }
 
     public AddCommentExecutorManager withPostGuid(@Nonnull String postGuid) {
@@ -58,12 +58,7 @@ public class AddCommentExecutorManager extends SimpleExecutorManager<ResponseCom
     protected ResponseComment execute() throws Exception {
         checkState(mPostGuid != null);
         checkState(mBody != null);
-        Thread.sleep(1000);
-        if ("post does not exists".equals(mPostGuid)) {
-            throw new IOException("simulate api error");
-        }
-        final long commentIdFromApi = new Random().nextLong();
-        return new ResponseComment(mPostGuid, new Comment(commentIdFromApi, mBody));
+        return mFakeServer.addComment(mPostGuid, mBody);
     }
 
     @Override
@@ -17,17 +17,18 @@
 package com.example.api;
 
 import com.appunite.cache.CacheKey;
+import com.appunite.cache.ChangeDelta;
 import com.appunite.cache.CommandName;
+import com.appunite.cache.FreshnessPolicy;
 import com.appunite.cache.SyncExecutor;
 import com.example.api.internal.ExampleDescription;
 import com.example.api.internal.ExecutorManager;
-import com.example.api.model.Comment;
+import com.example.api.internal.FakeServer;
 import com.example.api.model.ResponseComments;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 
 import java.util.List;
-
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -37,11 +38,18 @@ import static com.google.common.base.Preconditions.checkState;
 
 public class CommentsExecutorManager extends ExecutorManager<ResponseComments> {
 
+    private static final FreshnessPolicy FRESHNESS_POLICY =
+            FreshnessPolicy.of(1, 59, TimeUnit.MINUTES);
+
+    @Nonnull
+    private final FakeServer mFakeServer;
     private String mPostGuid;
 
     public CommentsExecutorManager(@Nonnull SyncExecutor syncExecutor,
-                                   @Nonnull ExampleDescription exampleDescription) {
+                                   @Nonnull ExampleDescription exampleDescription,
+                                   @Nonnull FakeServer fakeServer) {
         super(syncExecutor, exampleDescription);
+        mFakeServer = checkNotNull(fakeServer);
     }
 
 
@@ -60,24 +68,7 @@ public class CommentsExecutorManager extends ExecutorManager<ResponseComments> {
     @Override
     protected ResponseComments execute(@Nullable String nextToken) throws Exception {
         checkState(mPostGuid != null);
-
-        // This is normally done on server ;)
-        Thread.sleep(1000);
-
-        int pos;
-        if (nextToken != null) {
-            pos = Integer.parseInt(nextToken);
-        } else {
-            pos = 0;
-        }
-
-        final ImmutableList.Builder<Comment> posts = ImmutableList.builder();
-        for (int i = 0; i < 10; ++i) {
-            posts.add(new Comment(pos, "post: " + mPostGuid + ", comment: " + pos));
-            pos++;
-        }
-
-        return new ResponseComments(mPostGuid, posts.build(), String.valueOf(pos));
+        return mFakeServer.fetchComments(mPostGuid, nextToken);
     }
 
     @Override
@@ -98,12 +89,28 @@ public class CommentsExecutorManager extends ExecutorManager<ResponseComments> {
         return ResponseComments.newWithAppended(previous, moreData);
     }
 
+    @Nullable
+    @Override
+    protected ChangeDelta getMergeDelta(@Nonnull ResponseComments previous,
+                                        @Nonnull ResponseComments moreData) {
+        final int count = moreData.getCommentList().size();
+        return count == 0
+                ? ChangeDelta.EMPTY
+                : ChangeDelta.inserted(previous.getCommentList().size(), count);
+    }
+
     @Nonnull
     @Override
     protected CacheKey<ResponseComments> getCacheKey() {
         return ExampleDescription.forPostComments(mPostGuid);
     }
 
+    @Nonnull
+    @Override
+    protected FreshnessPolicy getFreshnessPolicy() {
+        return FRESHNESS_POLICY;
+    }
+
     @Override
     protected List<CommandName<ResponseComments, ?>> getCommandsNames() {
         return ImmutableList.<CommandName<ResponseComments, ?>>of(
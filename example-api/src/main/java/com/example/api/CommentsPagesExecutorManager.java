@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.api;
+
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandName;
+import com.appunite.cache.SyncExecutor;
+import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
+import com.example.api.internal.PagedExecutorManager;
+import com.example.api.model.ResponseComments;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Comments of post in pages, memory used by long list is bounded by window of pages
+ */
+public class CommentsPagesExecutorManager extends PagedExecutorManager<ResponseComments> {
+
+    @Nonnull
+    private final FakeServer mFakeServer;
+    private String mPostGuid;
+
+    public CommentsPagesExecutorManager(@Nonnull SyncExecutor syncExecutor,
+                                        @Nonnull ExampleDescription exampleDescription,
+                                        @Nonnull FakeServer fakeServer) {
+        super(syncExecutor, exampleDescription);
+        mFakeServer = checkNotNull(fakeServer);
+    }
+
+    public CommentsPagesExecutorManager withPostGuid(@Nonnull String postGuid) {
+        mPostGuid = checkNotNull(postGuid);
+        return this;
+    }
+
+    @Nonnull
+    @Override
+    protected CacheKey<ResponseComments> getPageCacheKey(@Nullable String pageToken) {
+        checkState(mPostGuid != null);
+        return ExampleDescription.forPostCommentsPage(mPostGuid, pageToken);
+    }
+
+    @Nonnull
+    @Override
+    protected ResponseComments execute(@Nullable String pageToken) throws Exception {
+        checkState(mPostGuid != null);
+        return mFakeServer.fetchComments(mPostGuid, pageToken);
+    }
+
+    @Nullable
+    @Override
+    protected String getNextToken(@Nonnull ResponseComments page) {
+        return page.getNextToken();
+    }
+
+    @Nonnull
+    @Override
+    protected List<CommandName<ResponseComments, ?>> getCommandsNames(@Nullable String pageToken) {
+        // New comments are added on top of first page
+        return pageToken == null
+                ? ImmutableList.<CommandName<ResponseComments, ?>>of(ExampleDescription.COMMENT_ADDED)
+                : ImmutableList.<CommandName<ResponseComments, ?>>of();
+    }
+}
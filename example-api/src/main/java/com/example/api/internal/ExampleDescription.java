@@ -16,19 +16,34 @@
 
 package com.example.api.internal;
 
+import com.appunite.cache.BatchCommand;
+import com.appunite.cache.CacheCodec;
 import com.appunite.cache.CacheInvalidationListener;
 import com.appunite.cache.CacheKey;
+import com.appunite.cache.CacheKeySelector;
+import com.appunite.cache.CacheWeigher;
+import com.appunite.cache.ChangeDelta;
 import com.appunite.cache.Command;
 import com.appunite.cache.CommandName;
 import com.appunite.cache.CommandsDescription;
+import com.appunite.cache.FreshnessPolicy;
+import com.example.api.model.Comment;
 import com.example.api.model.ResponseComment;
 import com.example.api.model.ResponseComments;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -41,18 +56,110 @@ public class ExampleDescription {
         return CacheKey.of("posts/" + postGuid + "/comments");
     }
 
-    private CommandsDescription mCommandsDescription = new CommandsDescription();
+    /**
+     * Single page of comments, see {@link PagedExecutorManager}
+     */
+    public static CacheKey<ResponseComments> forPostCommentsPage(String postGuid, @Nullable String pageToken) {
+        return CacheKey.of("posts/" + postGuid + "/comments/pages/" + (pageToken == null ? "" : pageToken));
+    }
+
+    private static final long CACHE_SIZE_BYTES = 1024 * 1024;
+    private static final int OBJECT_OVERHEAD_BYTES = 16;
+    private static final int COMMENT_OVERHEAD_BYTES = 48;
+
+    private CommandsDescription mCommandsDescription = new CommandsDescription.Builder()
+            .maximumWeight(CACHE_SIZE_BYTES)
+            // Managers decide about freshness, see ExecutorManager#getFreshnessPolicy()
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            // Screens that are not visible get missed changes when they are back
+            .recalculation(CommandsDescription.Recalculation.LAZY)
+            .weigher(ResponseComments.class, new CacheWeigher<ResponseComments>() {
+                @Override
+                public int weigh(@Nonnull ResponseComments object) {
+                    int weight = OBJECT_OVERHEAD_BYTES;
+                    for (Comment comment : object.getCommentList()) {
+                        final String body = comment.getBody();
+                        weight += COMMENT_OVERHEAD_BYTES + (body == null ? 0 : body.length() * 2);
+                    }
+                    return weight;
+                }
+            })
+            .codec(ResponseComments.class, new CacheCodec<ResponseComments>() {
+                @Override
+                public void encode(@Nonnull ResponseComments object, @Nonnull DataOutput output) throws IOException {
+                    output.writeUTF(object.getPostGuid());
+                    writeNullableString(output, object.getNextToken());
+                    final List<Comment> commentList = object.getCommentList();
+                    output.writeInt(commentList.size());
+                    for (Comment comment : commentList) {
+                        output.writeLong(comment.getId());
+                        writeNullableString(output, comment.getBody());
+                    }
+                }
+
+                @Nonnull
+                @Override
+                public ResponseComments decode(@Nonnull DataInput input) throws IOException {
+                    final String postGuid = input.readUTF();
+                    final String nextToken = readNullableString(input);
+                    final int size = input.readInt();
+                    final ImmutableList.Builder<Comment> comments = ImmutableList.builder();
+                    for (int i = 0; i < size; i++) {
+                        comments.add(new Comment(input.readLong(), readNullableString(input)));
+                    }
+                    return new ResponseComments(postGuid, comments.build(), nextToken);
+                }
+            })
+            .build();
+
+    private static void writeNullableString(@Nonnull DataOutput output, @Nullable String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(@Nonnull DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
 
     @Inject
     public ExampleDescription() {
-        mCommandsDescription.addCommand(COMMENT_ADDED, new Command<ResponseComments, ResponseComment>() {
+        mCommandsDescription.addCommand(COMMENT_ADDED, new BatchCommand<ResponseComments, ResponseComment>() {
             @Nonnull
             @Override
             public Command.UpdateResult<ResponseComments> apply(ResponseComment parameter, @Nonnull ResponseComments object) {
                 if (!Objects.equal(object.getPostGuid(), parameter.getPostGuid())) {
                     return UpdateResult.forUpdateNotRequired();
                 }
-                return UpdateResult.forUpdate(ResponseComments.newWithaddedComment(object, parameter.getComment()));
+                return UpdateResult.forUpdate(ResponseComments.newWithaddedComment(object, parameter.getComment()),
+                        ChangeDelta.inserted(0, 1));
+            }
+
+            @Nonnull
+            @Override
+            public UpdateResult<ResponseComments> applyAll(@Nonnull List<ResponseComment> parameters,
+                                                           @Nonnull ResponseComments object) {
+                final List<Comment> comments = Lists.newArrayListWithCapacity(parameters.size());
+                for (ResponseComment parameter : parameters) {
+                    if (Objects.equal(object.getPostGuid(), parameter.getPostGuid())) {
+                        comments.add(parameter.getComment());
+                    }
+                }
+                if (comments.isEmpty()) {
+                    return UpdateResult.forUpdateNotRequired();
+                }
+                return UpdateResult.forUpdate(ResponseComments.newWithAddedComments(object, comments),
+                        ChangeDelta.inserted(0, comments.size()));
+            }
+        }, new CacheKeySelector<ResponseComment>() {
+            @Nonnull
+            @Override
+            public Selection select(ResponseComment parameter) {
+                // New comments are on top, so only first page changes
+                return Selection.forKeys(forPostComments(parameter.getPostGuid()),
+                        forPostCommentsPage(parameter.getPostGuid(), null));
             }
         });
     }
@@ -70,15 +177,47 @@ public class ExampleDescription {
         mCommandsDescription.unregister(cacheKey, listener);
     }
 
+    public <T> void setListenerActive(CacheKey<T> cacheKey, CacheInvalidationListener<T> listener,
+                                      boolean active) {
+        mCommandsDescription.setListenerActive(cacheKey, listener, active);
+    }
+
     public <T> void putCache(CacheKey<T> cacheKey, T object,
                              List<CommandName<T, ?>> commands) {
         mCommandsDescription.putCache(cacheKey, object, commands);
     }
 
+    /**
+     * Group many invalidations and puts, i.e. while syncing, so listeners are notified once
+     */
+    @Nonnull
+    public CommandsDescription.Transaction beginTransaction() {
+        return mCommandsDescription.beginTransaction();
+    }
+
+    public <T> void putCache(CacheKey<T> cacheKey, T object,
+                             List<CommandName<T, ?>> commands,
+                             T previous, ChangeDelta delta) {
+        mCommandsDescription.putCache(cacheKey, object, commands, previous, delta);
+    }
+
     public <T> Optional<T> getCacheIfPresent(CacheKey<T> cacheKey) {
         return mCommandsDescription.getCacheIfPresent(cacheKey);
     }
 
+    @Nonnull
+    public <T> FreshnessPolicy.Freshness getFreshness(CacheKey<T> cacheKey, FreshnessPolicy policy) {
+        return mCommandsDescription.getFreshness(cacheKey, policy);
+    }
+
+    public void writeSnapshot(@Nonnull File file) throws IOException {
+        mCommandsDescription.writeSnapshot(file);
+    }
+
+    public void restoreSnapshot(@Nonnull File file) throws IOException {
+        mCommandsDescription.restoreSnapshot(file);
+    }
+
     public void clearAll() {
         mCommandsDescription.clearAll();
     }
@@ -16,15 +16,19 @@
 
 package com.example.api.internal;
 
-import com.appunite.cache.CacheInvalidationListener;
 import com.appunite.cache.CacheKey;
+import com.appunite.cache.ChangeDelta;
 import com.appunite.cache.CommandName;
+import com.appunite.cache.DeltaCacheInvalidationListener;
+import com.appunite.cache.DeltaListenerCallback;
+import com.appunite.cache.FreshnessPolicy;
 import com.appunite.cache.ListenerCallback;
 import com.appunite.cache.ObservableExecutor;
 import com.appunite.cache.SyncExecutor;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -37,7 +41,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
-        CacheInvalidationListener<T> {
+        DeltaCacheInvalidationListener<T> {
 
     @Nonnull
     private final SyncExecutor mSyncExecutor;
@@ -52,6 +56,13 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
     }
 
     private boolean mExecuting = false;
+    private boolean mActive = true;
+    @Nonnull
+    private SyncExecutor.Priority mPriority = SyncExecutor.Priority.USER_VISIBLE;
+    @Nullable
+    private ListenableFuture<?> mLoadFuture;
+    @Nullable
+    private ListenableFuture<?> mLoadMoreFuture;
 
     protected ListenerCallback<T> mListener;
 
@@ -61,32 +72,77 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
         mListener = listener;
 
         mExampleDescription.register(getCacheKey(), this);
+        if (!mActive) {
+            mExampleDescription.setListenerActive(getCacheKey(), this, false);
+        }
+        final FreshnessPolicy.Freshness freshness =
+                mExampleDescription.getFreshness(getCacheKey(), getFreshnessPolicy());
         final Optional<T> cacheIfPresent = getCacheIfPresent();
-        if (cacheIfPresent.isPresent()) {
+        if (cacheIfPresent.isPresent() && freshness != FreshnessPolicy.Freshness.EXPIRED) {
             listener.onNewData(cacheIfPresent.get());
+            if (freshness == FreshnessPolicy.Freshness.STALE) {
+                // Revalidated data is delivered by onChanged
+                loadData(SyncExecutor.Priority.lower(mPriority,
+                        SyncExecutor.Priority.BACKGROUND_REFRESH));
+            }
         } else {
-            loadData();
+            loadData(mPriority);
         }
     }
 
+    /**
+     * Policy deciding if cached data is served on register and if it is reloaded in background
+     */
+    @Nonnull
+    protected FreshnessPolicy getFreshnessPolicy() {
+        return FreshnessPolicy.ALWAYS_FRESH;
+    }
+
     public void refresh() {
-        loadData();
+        loadData(mPriority);
+    }
+
+    /**
+     * Priority of loads requested by user of this manager. Background revalidation and
+     * {@link #loadMoreIfCan()} use lower priorities.
+     */
+    public void setPriority(@Nonnull SyncExecutor.Priority priority) {
+        mPriority = checkNotNull(priority);
     }
 
-    private void loadData() {
+    /**
+     * Set to false when data is not visible, i.e. activity is stopped, so commands are not
+     * replayed for it. Changes made in meantime are delivered when it gets active again.
+     */
+    public void setActive(boolean active) {
+        if (mActive == active) {
+            return;
+        }
+        mActive = active;
+        if (mListener != null) {
+            mExampleDescription.setListenerActive(getCacheKey(), this, active);
+        }
+    }
+
+    private void loadData(@Nonnull SyncExecutor.Priority priority) {
         mExecuting = true;
-        mSyncExecutor.executeAndReturn(
-                new Callable<T>() {
+        final ListenableFuture<?> previousLoad = mLoadFuture;
+        // Managers of the same key share a single load
+        mLoadFuture = mSyncExecutor.executeAndReturnShared(priority, getCacheKey(),
+                new Callable<LoadedData<T>>() {
                     @Override
-                    public T call() throws Exception {
-                        return execute();
+                    public LoadedData<T> call() throws Exception {
+                        return new LoadedData<>(execute());
                     }
                 },
-                new SyncExecutor.OnSuccess<T>() {
+                new SyncExecutor.OnSuccess<LoadedData<T>>() {
                     @Override
-                    public void run(T data) {
+                    public void run(LoadedData<T> loadedData) {
+                        final T data = loadedData.getData();
                         afterExecute(data);
-                        mExampleDescription.putCache(getCacheKey(), data, getCommandsNames());
+                        if (loadedData.markStored()) {
+                            mExampleDescription.putCache(getCacheKey(), data, getCommandsNames());
+                        }
                         mExecuting = false;
                     }
                 },
@@ -99,6 +155,10 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
                         }
                     }
                 });
+        // Cancel after attaching new caller, so running shared call is not interrupted
+        if (previousLoad != null) {
+            previousLoad.cancel(true);
+        }
     }
 
     protected List<CommandName<T,?>> getCommandsNames() {
@@ -112,9 +172,18 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
         }
     }
 
+    @Override
+    public void onChanged(@Nonnull T object, @Nullable ChangeDelta delta) {
+        if (mListener instanceof DeltaListenerCallback) {
+            ((DeltaListenerCallback<T>) mListener).onNewData(object, delta);
+        } else {
+            onChanged(object);
+        }
+    }
+
     @Override
     public void onInvalidated() {
-        loadData();
+        loadData(mPriority);
     }
 
     @Nonnull
@@ -142,6 +211,14 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
         throw new UnsupportedOperationException("Not supported operation");
     }
 
+    /**
+     * Describe change done by {@link #mergeData(Object, Object)}, null if unknown
+     */
+    @Nullable
+    protected ChangeDelta getMergeDelta(@Nonnull T previous, @Nonnull T moreData) {
+        return null;
+    }
+
     protected void afterExecute(@Nonnull T data) {
 
     }
@@ -152,11 +229,25 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
 
         checkState(mListener != null);
         mListener = null;
+        cancelExecuting();
     }
 
     @Override
     public void unregisterIfRegistered() {
         mListener = null;
+        cancelExecuting();
+    }
+
+    private void cancelExecuting() {
+        if (mLoadFuture != null) {
+            mLoadFuture.cancel(true);
+            mLoadFuture = null;
+        }
+        if (mLoadMoreFuture != null) {
+            mLoadMoreFuture.cancel(true);
+            mLoadMoreFuture = null;
+        }
+        mExecuting = false;
     }
 
     public boolean hasMore() {
@@ -178,7 +269,7 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
         if (mExecuting) {
             return;
         }
-        loadMore(nextToken);
+        loadMore(nextToken, SyncExecutor.Priority.lower(mPriority, SyncExecutor.Priority.PREFETCH));
     }
 
     public void loadMore() {
@@ -190,12 +281,13 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
 
         checkState(!mExecuting, "You can not call loadMore if executing");
 
-        loadMore(nextToken);
+        loadMore(nextToken, mPriority);
     }
 
-    private void loadMore(@Nullable final String nextToken) {
+    private void loadMore(@Nullable final String nextToken,
+                          @Nonnull SyncExecutor.Priority priority) {
         mExecuting = true;
-        mSyncExecutor.executeAndReturn(
+        mLoadMoreFuture = mSyncExecutor.executeAndReturn(priority,
                 new Callable<T>() {
                     @Override
                     public T call() throws Exception {
@@ -215,7 +307,13 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
                             return;
                         }
                         final T newData = mergeData(previous, moreData);
-                        mExampleDescription.putCache(getCacheKey(), newData, getCommandsNames());
+                        final ChangeDelta delta = getMergeDelta(previous, moreData);
+                        if (delta == null) {
+                            mExampleDescription.putCache(getCacheKey(), newData, getCommandsNames());
+                        } else {
+                            mExampleDescription.putCache(getCacheKey(), newData, getCommandsNames(),
+                                    previous, delta);
+                        }
                     }
                 },
                 new SyncExecutor.OnError() {
@@ -234,4 +332,28 @@ public abstract class ExecutorManager<T> implements ObservableExecutor<T>,
         return mExampleDescription.getCacheIfPresent(getCacheKey());
     }
 
+    private static class LoadedData<T> {
+        @Nonnull
+        private final T mData;
+        private boolean mStored = false;
+
+        public LoadedData(@Nonnull T data) {
+            mData = checkNotNull(data);
+        }
+
+        @Nonnull
+        public T getData() {
+            return mData;
+        }
+
+        /**
+         * @return true only for the first caller, so data is put to cache once
+         */
+        public boolean markStored() {
+            final boolean stored = mStored;
+            mStored = true;
+            return !stored;
+        }
+    }
+
 }
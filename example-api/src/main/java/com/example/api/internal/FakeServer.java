@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.api.internal;
+
+import com.example.api.model.Comment;
+import com.example.api.model.ResponseComment;
+import com.example.api.model.ResponseComments;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Simulates API server, every call blocks calling thread for latency
+ */
+@Singleton
+public class FakeServer {
+
+    public interface Sleeper {
+        public void sleep(long duration, @Nonnull TimeUnit unit) throws InterruptedException;
+    }
+
+    public static final Sleeper THREAD_SLEEPER = new Sleeper() {
+        @Override
+        public void sleep(long duration, @Nonnull TimeUnit unit) throws InterruptedException {
+            unit.sleep(duration);
+        }
+    };
+
+    private static final long DEFAULT_LATENCY_MILLIS = 1000;
+    private static final String NOT_EXISTING_POST_GUID = "post does not exists";
+
+    private final long mLatencyNanos;
+    @Nonnull
+    private final Sleeper mSleeper;
+    @Nonnull
+    private final Random mRandom = new Random();
+
+    @Inject
+    public FakeServer() {
+        this(DEFAULT_LATENCY_MILLIS, TimeUnit.MILLISECONDS, THREAD_SLEEPER);
+    }
+
+    public FakeServer(long latency, @Nonnull TimeUnit unit, @Nonnull Sleeper sleeper) {
+        checkArgument(latency >= 0, "latency could not be negative");
+        mLatencyNanos = unit.toNanos(latency);
+        mSleeper = checkNotNull(sleeper);
+    }
+
+    @Nonnull
+    public ResponseComments fetchComments(@Nonnull String postGuid,
+                                          @Nullable String nextToken) throws InterruptedException {
+        checkNotNull(postGuid);
+        mSleeper.sleep(mLatencyNanos, TimeUnit.NANOSECONDS);
+
+        int pos;
+        if (nextToken != null) {
+            pos = Integer.parseInt(nextToken);
+        } else {
+            pos = 0;
+        }
+
+        final ImmutableList.Builder<Comment> posts = ImmutableList.builder();
+        for (int i = 0; i < 10; ++i) {
+            posts.add(new Comment(pos, "post: " + postGuid + ", comment: " + pos));
+            pos++;
+        }
+
+        return new ResponseComments(postGuid, posts.build(), String.valueOf(pos));
+    }
+
+    @Nonnull
+    public ResponseComment addComment(@Nonnull String postGuid,
+                                      @Nonnull String body) throws InterruptedException, IOException {
+        checkNotNull(postGuid);
+        checkNotNull(body);
+        mSleeper.sleep(mLatencyNanos, TimeUnit.NANOSECONDS);
+        if (NOT_EXISTING_POST_GUID.equals(postGuid)) {
+            throw new IOException("simulate api error");
+        }
+        final long commentIdFromApi = mRandom.nextLong();
+        return new ResponseComment(postGuid, new Comment(commentIdFromApi, body));
+    }
+}
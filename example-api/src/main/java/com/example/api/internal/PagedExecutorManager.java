@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.api.internal;
+
+import com.appunite.cache.CacheInvalidationListener;
+import com.appunite.cache.CacheKey;
+import com.appunite.cache.CommandName;
+import com.appunite.cache.ListenerCallback;
+import com.appunite.cache.ObservableExecutor;
+import com.appunite.cache.SyncExecutor;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Infinite list where every page is cached separately under key of its token, instead of merging
+ * pages into one growing object like {@link ExecutorManager#loadMore()}.
+ *
+ * Only pages in {@link #setWindow(int) window} around {@link #setVisiblePages(int, int) visible
+ * pages} are registered and held by listener, other pages can be evicted from cache. Pages are
+ * restored from cache or fetched again when they get into window.
+ */
+public abstract class PagedExecutorManager<T> implements ObservableExecutor<PagedExecutorManager.Pages<T>> {
+
+    public static final int DEFAULT_WINDOW = 2;
+
+    @Nonnull
+    private final SyncExecutor mSyncExecutor;
+    @Nonnull
+    private final ExampleDescription mExampleDescription;
+
+    @Inject
+    public PagedExecutorManager(@Nonnull SyncExecutor syncExecutor,
+                                @Nonnull ExampleDescription exampleDescription) {
+        mSyncExecutor = checkNotNull(syncExecutor);
+        mExampleDescription = checkNotNull(exampleDescription);
+    }
+
+    /**
+     * Token used to fetch page of given index, first page is fetched with null token
+     */
+    @Nonnull
+    private final List<String> mPageTokens = Lists.newArrayList();
+    /**
+     * Pages in window, by index
+     */
+    @Nonnull
+    private final Map<Integer, PageListener> mResidentPages = Maps.newHashMap();
+    private boolean mHasMore = true;
+    private int mWindow = DEFAULT_WINDOW;
+    private int mFirstVisiblePage = 0;
+    private int mLastVisiblePage = 0;
+    @Nonnull
+    private SyncExecutor.Priority mPriority = SyncExecutor.Priority.USER_VISIBLE;
+
+    @Nullable
+    private ListenerCallback<Pages<T>> mListener;
+
+    @Override
+    public void register(@Nonnull ListenerCallback<Pages<T>> listener) {
+        checkNotNull(listener);
+        checkState(mListener == null, "Already registered");
+        mListener = listener;
+
+        mPageTokens.clear();
+        mPageTokens.add(null);
+        mHasMore = true;
+        updateWindow();
+    }
+
+    /**
+     * Number of pages kept before and after visible pages, those pages are also prefetched
+     */
+    public void setWindow(int window) {
+        checkArgument(window >= 0, "window could not be negative");
+        mWindow = window;
+        if (mListener != null) {
+            updateWindow();
+        }
+    }
+
+    /**
+     * Priority of visible pages, pages outside visible range use lower priority
+     */
+    public void setPriority(@Nonnull SyncExecutor.Priority priority) {
+        mPriority = checkNotNull(priority);
+    }
+
+    /**
+     * Call when user scrolls, pages that leave the window are released and pages that get into
+     * window are restored or fetched
+     */
+    public void setVisiblePages(int firstPage, int lastPage) {
+        checkArgument(firstPage >= 0, "firstPage could not be negative");
+        checkArgument(lastPage >= firstPage, "lastPage could not be before firstPage");
+        checkState(mListener != null, "You can not set visible pages before register");
+        mFirstVisiblePage = firstPage;
+        mLastVisiblePage = lastPage;
+        updateWindow();
+    }
+
+    public void refresh() {
+        for (PageListener page : mResidentPages.values()) {
+            loadPage(page);
+        }
+    }
+
+    private void updateWindow() {
+        final int from = Math.max(0, mFirstVisiblePage - mWindow);
+        final int to = mLastVisiblePage + mWindow;
+        releasePages(from, to);
+        // Tokens list grows while pages are restored from cache
+        for (int index = from; index <= to && index < mPageTokens.size(); index++) {
+            if (mResidentPages.containsKey(index)) {
+                continue;
+            }
+            final PageListener page = new PageListener(index, getPageCacheKey(mPageTokens.get(index)));
+            mResidentPages.put(index, page);
+            mExampleDescription.register(page.mCacheKey, page);
+            final Optional<T> cached = mExampleDescription.getCacheIfPresent(page.mCacheKey);
+            if (cached.isPresent()) {
+                updateTokens(index, cached.get());
+            } else {
+                loadPage(page);
+            }
+        }
+        deliver();
+    }
+
+    private void updateTokens(int index, @Nonnull T page) {
+        final String nextToken = getNextToken(page);
+        if (index + 1 < mPageTokens.size()) {
+            if (Objects.equal(mPageTokens.get(index + 1), nextToken)) {
+                return;
+            }
+            // Page has changed, so following pages are not its continuation anymore
+            releasePages(0, index);
+            mPageTokens.subList(index + 1, mPageTokens.size()).clear();
+        }
+        if (nextToken != null) {
+            mPageTokens.add(nextToken);
+        }
+        mHasMore = nextToken != null;
+    }
+
+    /**
+     * Release resident pages outside of given range
+     */
+    private void releasePages(int from, int to) {
+        final Iterator<Map.Entry<Integer, PageListener>> iterator = mResidentPages.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, PageListener> entry = iterator.next();
+            final int index = entry.getKey();
+            if (index < from || index > to) {
+                entry.getValue().release();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void loadPage(@Nonnull final PageListener page) {
+        if (page.mLoadFuture != null && !page.mLoadFuture.isDone()) {
+            return;
+        }
+        final String pageToken = mPageTokens.get(page.mIndex);
+        final SyncExecutor.Priority priority = page.mIndex >= mFirstVisiblePage && page.mIndex <= mLastVisiblePage
+                ? mPriority
+                : SyncExecutor.Priority.lower(mPriority, SyncExecutor.Priority.PREFETCH);
+        page.mLoadFuture = mSyncExecutor.executeAndReturn(priority,
+                new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return execute(pageToken);
+                    }
+                },
+                new SyncExecutor.OnSuccess<T>() {
+                    @Override
+                    public void run(T data) {
+                        // Registered page is notified by onChanged
+                        mExampleDescription.putCache(page.mCacheKey, data, getCommandsNames(pageToken));
+                    }
+                },
+                new SyncExecutor.OnError() {
+                    @Override
+                    public void except(@Nonnull Exception e) {
+                        if (mListener != null) {
+                            mListener.onError(e);
+                        }
+                    }
+                });
+    }
+
+    private void deliver() {
+        if (mListener == null) {
+            return;
+        }
+        final ImmutableList.Builder<Optional<T>> pages = ImmutableList.builder();
+        for (int index = 0; index < mPageTokens.size(); index++) {
+            final PageListener page = mResidentPages.get(index);
+            pages.add(page == null
+                    ? Optional.<T>absent()
+                    : mExampleDescription.getCacheIfPresent(page.mCacheKey));
+        }
+        mListener.onNewData(new Pages<>(pages.build(), mHasMore));
+    }
+
+    @Override
+    public void unregister() {
+        checkState(mListener != null);
+        unregisterIfRegistered();
+    }
+
+    @Override
+    public void unregisterIfRegistered() {
+        mListener = null;
+        releasePages(0, -1);
+    }
+
+    /**
+     * Key of page fetched with given token
+     */
+    @Nonnull
+    protected abstract CacheKey<T> getPageCacheKey(@Nullable String pageToken);
+
+    @Nonnull
+    protected abstract T execute(@Nullable String pageToken) throws Exception;
+
+    @Nullable
+    protected abstract String getNextToken(@Nonnull T page);
+
+    @Nonnull
+    protected List<CommandName<T, ?>> getCommandsNames(@Nullable String pageToken) {
+        return ImmutableList.of();
+    }
+
+    private class PageListener implements CacheInvalidationListener<T> {
+        private final int mIndex;
+        @Nonnull
+        private final CacheKey<T> mCacheKey;
+        @Nullable
+        private ListenableFuture<?> mLoadFuture;
+
+        public PageListener(int index, @Nonnull CacheKey<T> cacheKey) {
+            mIndex = index;
+            mCacheKey = checkNotNull(cacheKey);
+        }
+
+        @Override
+        public void onChanged(@Nonnull T object) {
+            if (mResidentPages.get(mIndex) != this) {
+                return;
+            }
+            updateTokens(mIndex, object);
+            updateWindow();
+        }
+
+        @Override
+        public void onInvalidated() {
+            if (mResidentPages.get(mIndex) == this) {
+                loadPage(this);
+            }
+        }
+
+        public void release() {
+            mExampleDescription.unregister(mCacheKey, this);
+            if (mLoadFuture != null) {
+                mLoadFuture.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Pages known so far, pages outside of window are absent
+     */
+    public static class Pages<T> {
+        @Nonnull
+        private final List<Optional<T>> mPages;
+        private final boolean mHasMore;
+
+        public Pages(@Nonnull List<Optional<T>> pages, boolean hasMore) {
+            mPages = ImmutableList.copyOf(checkNotNull(pages));
+            mHasMore = hasMore;
+        }
+
+        public int getPageCount() {
+            return mPages.size();
+        }
+
+        @Nonnull
+        public Optional<T> getPage(int index) {
+            return mPages.get(index);
+        }
+
+        /**
+         * @return true if there are pages after {@link #getPageCount()}
+         */
+        public boolean hasMore() {
+            return mHasMore;
+        }
+    }
+}
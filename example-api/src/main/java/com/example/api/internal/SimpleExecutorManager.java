@@ -19,11 +19,12 @@ package com.example.api.internal;
 import com.appunite.cache.ListenerCallback;
 import com.appunite.cache.ObservableExecutor;
 import com.appunite.cache.SyncExecutor;
-
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.concurrent.Callable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -35,6 +36,10 @@ public abstract class SimpleExecutorManager<T> implements ObservableExecutor<T>
     private final SyncExecutor mSyncExecutor;
 
     protected ListenerCallback<T> mListener;
+    @Nullable
+    private ListenableFuture<T> mFuture;
+    @Nonnull
+    private SyncExecutor.Priority mPriority = SyncExecutor.Priority.USER_VISIBLE;
 
     @Inject
     protected SimpleExecutorManager(@Nonnull SyncExecutor syncExecutor) {
@@ -50,9 +55,13 @@ public abstract class SimpleExecutorManager<T> implements ObservableExecutor<T>
         loadData();
     }
 
+    public void setPriority(@Nonnull SyncExecutor.Priority priority) {
+        mPriority = checkNotNull(priority);
+    }
+
     private void loadData() {
         beforeExecute();
-        mSyncExecutor.executeAndReturn(
+        mFuture = mSyncExecutor.executeAndReturn(mPriority,
                 new Callable<T>() {
                     @Override
                     public T call() throws Exception {
@@ -97,11 +106,20 @@ public abstract class SimpleExecutorManager<T> implements ObservableExecutor<T>
     public void unregister() {
         checkState(mListener != null);
         mListener = null;
+        cancelExecuting();
     }
 
     @Override
     public void unregisterIfRegistered() {
         mListener = null;
+        cancelExecuting();
+    }
+
+    private void cancelExecuting() {
+        if (mFuture != null) {
+            mFuture.cancel(true);
+            mFuture = null;
+        }
     }
 
 }
@@ -16,7 +16,8 @@
 
 package com.example.api.model;
 
-import com.google.common.collect.ImmutableList;
+import com.appunite.cache.PersistentList;
+import com.google.common.collect.Lists;
 
 import java.util.List;
 
@@ -32,16 +33,16 @@ public class ResponseComments {
     private final String mPostGuid;
 
     @Nonnull
-    private ImmutableList<Comment> mCommentList;
+    private PersistentList<Comment> mCommentList;
 
     @Nullable
     private String mNextToken;
 
     public ResponseComments(@Nonnull String postGuid,
-                            @Nonnull ImmutableList<Comment> commentList,
+                            @Nonnull List<Comment> commentList,
                             @Nullable String nextToken) {
         mPostGuid = checkNotNull(postGuid);
-        mCommentList = checkNotNull(commentList);
+        mCommentList = PersistentList.copyOf(commentList);
         mNextToken = nextToken;
     }
 
@@ -50,21 +51,24 @@ public class ResponseComments {
         checkNotNull(moreData);
         checkState(oldData.mPostGuid.equals(moreData.mPostGuid));
 
-        final ImmutableList<Comment> build = ImmutableList.<Comment>builder()
-                .addAll(oldData.mCommentList)
-                .addAll(moreData.mCommentList)
-                .build();
-        return new ResponseComments(oldData.mPostGuid, build, moreData.mNextToken);
+        return new ResponseComments(oldData.mPostGuid,
+                oldData.mCommentList.appendAll(moreData.mCommentList), moreData.mNextToken);
     }
 
     public static ResponseComments newWithaddedComment(@Nonnull ResponseComments oldData,
                                                        @Nonnull Comment comment) {
-        checkNotNull(comment);
-        final ImmutableList<Comment> build = ImmutableList.<Comment>builder()
-                .add(comment)
-                .addAll(oldData.mCommentList)
-                .build();
-        return new ResponseComments(oldData.mPostGuid, build, oldData.mNextToken);
+        return new ResponseComments(oldData.mPostGuid,
+                oldData.mCommentList.prepend(comment), oldData.mNextToken);
+    }
+
+    /**
+     * Same as calling {@link #newWithaddedComment(ResponseComments, Comment)} for every comment in
+     * order
+     */
+    public static ResponseComments newWithAddedComments(@Nonnull ResponseComments oldData,
+                                                        @Nonnull List<Comment> comments) {
+        return new ResponseComments(oldData.mPostGuid,
+                oldData.mCommentList.prependAll(Lists.reverse(comments)), oldData.mNextToken);
     }
 
     @Nullable
@@ -17,17 +17,20 @@
 package com.example.api;
 
 import com.appunite.cache.ListenerCallback;
-import com.appunite.cache.SameThreadScheduler;
 import com.appunite.cache.SyncExecutor;
+import com.appunite.cache.VirtualTime;
 import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
 import com.example.api.model.ResponseComment;
-import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -38,14 +41,21 @@ import static org.mockito.Mockito.verify;
 @SuppressWarnings("unchecked")
 public class AddCommentExecutorManagerTest {
 
+    private VirtualTime mTime;
     private AddCommentExecutorManager mAddCommentExecutorManager;
 
     @Before
     public void setUpExecutorManager() throws Exception {
         final ExampleDescription exampleDescription = new ExampleDescription();
-        final SyncExecutor syncExecutor = new SyncExecutor(MoreExecutors.newDirectExecutorService(),
-                new SameThreadScheduler());
-        mAddCommentExecutorManager = new AddCommentExecutorManager(syncExecutor, exampleDescription);
+        mTime = new VirtualTime();
+        final SyncExecutor syncExecutor = new SyncExecutor(mTime.getExecutorService(), mTime.getScheduler());
+        final FakeServer fakeServer = new FakeServer(1, TimeUnit.SECONDS, new FakeServer.Sleeper() {
+            @Override
+            public void sleep(long duration, @Nonnull TimeUnit unit) {
+                mTime.sleep(duration, unit);
+            }
+        });
+        mAddCommentExecutorManager = new AddCommentExecutorManager(syncExecutor, exampleDescription, fakeServer);
     }
 
     @Test
@@ -54,6 +64,7 @@ public class AddCommentExecutorManagerTest {
 
         final AddCommentExecutorManager executorManager = mAddCommentExecutorManager.withPostGuid("123").withBody("some body");
         executorManager.register(listener);
+        mTime.runPending();
 
         final ArgumentCaptor<ResponseComment> captor = ArgumentCaptor.forClass(ResponseComment.class);
         verify(listener).onNewData(captor.capture());
@@ -72,6 +83,7 @@ public class AddCommentExecutorManagerTest {
 
         final AddCommentExecutorManager executorManager = mAddCommentExecutorManager.withPostGuid("post does not exists").withBody("some body");
         executorManager.register(listener);
+        mTime.runPending();
 
         verify(listener).onError(notNull(IOException.class));
 
@@ -18,17 +18,21 @@ package com.example.api;
 
 import com.appunite.cache.ListenerCallback;
 import com.appunite.cache.ListenerCallbackAdapter;
-import com.appunite.cache.SameThreadScheduler;
 import com.appunite.cache.SyncExecutor;
+import com.appunite.cache.VirtualTime;
 import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
 import com.example.api.model.ResponseComment;
 import com.example.api.model.ResponseComments;
-import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
@@ -37,20 +41,28 @@ import static org.mockito.Mockito.verify;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 @SuppressWarnings("unchecked")
 public class CommentsExecutorManagerTest {
 
+    private VirtualTime mTime;
     private CommentsExecutorManager mCommentsExecutorManager;
     private AddCommentExecutorManager mAddCommentExecutorManager;
 
     @Before
     public void setUpExecutorManager() throws Exception {
         final ExampleDescription exampleDescription = new ExampleDescription();
-        final SyncExecutor syncExecutor = new SyncExecutor(MoreExecutors.newDirectExecutorService(),
-                new SameThreadScheduler());
-        mCommentsExecutorManager = new CommentsExecutorManager(syncExecutor, exampleDescription);
-        mAddCommentExecutorManager = new AddCommentExecutorManager(syncExecutor, exampleDescription);
+        mTime = new VirtualTime();
+        final SyncExecutor syncExecutor = new SyncExecutor(mTime.getExecutorService(), mTime.getScheduler());
+        final FakeServer fakeServer = new FakeServer(1, TimeUnit.SECONDS, new FakeServer.Sleeper() {
+            @Override
+            public void sleep(long duration, @Nonnull TimeUnit unit) {
+                mTime.sleep(duration, unit);
+            }
+        });
+        mCommentsExecutorManager = new CommentsExecutorManager(syncExecutor, exampleDescription, fakeServer);
+        mAddCommentExecutorManager = new AddCommentExecutorManager(syncExecutor, exampleDescription, fakeServer);
     }
 
     @Test
@@ -58,6 +70,7 @@ public class CommentsExecutorManagerTest {
         final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
         final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
         executorManager.register(listener);
+        mTime.runPending();
 
         final ArgumentCaptor<ResponseComments> captor = ArgumentCaptor.forClass(ResponseComments.class);
         verify(listener).onNewData(captor.capture());
@@ -68,6 +81,8 @@ public class CommentsExecutorManagerTest {
         assertThat(captor.getValue().getCommentList().get(0).getBody(), is(equalTo("post: 123, comment: 0")));
         assertThat(captor.getValue().getCommentList().get(0).getId(), is(equalTo(0L)));
         assertThat(captor.getValue().getPostGuid(), is(equalTo("123")));
+        // Response was delayed by server latency
+        assertThat(mTime.now(), is(equalTo(TimeUnit.SECONDS.toNanos(1))));
 
         executorManager.unregister();
     }
@@ -77,12 +92,14 @@ public class CommentsExecutorManagerTest {
         final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
         final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
         executorManager.register(listener);
+        mTime.runPending();
 
         verify(listener).onNewData(any(ResponseComments.class));
         reset(listener);
         assertThat(executorManager.hasMore(), is(equalTo(true)));
 
         executorManager.loadMore();
+        mTime.runPending();
 
         final ArgumentCaptor<ResponseComments> captor = ArgumentCaptor.forClass(ResponseComments.class);
         verify(listener).onNewData(captor.capture());
@@ -100,6 +117,7 @@ public class CommentsExecutorManagerTest {
         final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
         final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
         executorManager.register(listener);
+        mTime.runPending();
 
         verify(listener).onNewData(any(ResponseComments.class));
         reset(listener);
@@ -110,6 +128,7 @@ public class CommentsExecutorManagerTest {
                     .withBody("some")
                     .register(new ListenerCallbackAdapter<ResponseComment>());
         }
+        mTime.runPending();
 
         final ArgumentCaptor<ResponseComments> captor = ArgumentCaptor.forClass(ResponseComments.class);
         verify(listener).onNewData(captor.capture());
@@ -127,6 +146,7 @@ public class CommentsExecutorManagerTest {
         final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
         final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
         executorManager.register(listener);
+        mTime.runPending();
 
         verify(listener).onNewData(any(ResponseComments.class));
         reset(listener);
@@ -137,11 +157,13 @@ public class CommentsExecutorManagerTest {
                     .withBody("some")
                     .register(new ListenerCallbackAdapter<ResponseComment>());
         }
+        mTime.runPending();
 
         verify(listener).onNewData(any(ResponseComments.class));
         reset(listener);
 
         executorManager.loadMore();
+        mTime.runPending();
 
 
         final ArgumentCaptor<ResponseComments> captor = ArgumentCaptor.forClass(ResponseComments.class);
@@ -154,6 +176,7 @@ public class CommentsExecutorManagerTest {
         final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
         final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
         executorManager.register(listener);
+        mTime.runPending();
 
         verify(listener).onNewData(any(ResponseComments.class));
         reset(listener);
@@ -164,8 +187,23 @@ public class CommentsExecutorManagerTest {
                     .withBody("some")
                     .register(new ListenerCallbackAdapter<ResponseComment>());
         }
+        mTime.runPending();
 
         verifyNoMoreInteractions(listener);
         executorManager.unregister();
     }
+
+    @Test
+    public void testRefreshThenUnregister_noLoadIsDelivered() throws Exception {
+        final ListenerCallback<ResponseComments> listener = mock(ListenerCallback.class);
+        final CommentsExecutorManager executorManager = mCommentsExecutorManager.withPostGuid("123");
+
+        executorManager.register(listener);
+        executorManager.refresh();
+        executorManager.unregister();
+        mTime.runPending();
+
+        verifyZeroInteractions(listener);
+        assertThat(executorManager.getCacheIfPresent().isPresent(), is(equalTo(false)));
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.api;
+
+import com.appunite.cache.ListenerCallback;
+import com.appunite.cache.SyncExecutor;
+import com.appunite.cache.VirtualTime;
+import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
+import com.example.api.internal.PagedExecutorManager;
+import com.example.api.model.ResponseComments;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+@SuppressWarnings("unchecked")
+public class CommentsPagesExecutorManagerTest {
+
+    private VirtualTime mTime;
+    private CommentsPagesExecutorManager mExecutorManager;
+
+    @Before
+    public void setUpExecutorManager() throws Exception {
+        final ExampleDescription exampleDescription = new ExampleDescription();
+        mTime = new VirtualTime();
+        final SyncExecutor syncExecutor = new SyncExecutor(mTime.getExecutorService(), mTime.getScheduler());
+        final FakeServer fakeServer = new FakeServer(1, TimeUnit.SECONDS, new FakeServer.Sleeper() {
+            @Override
+            public void sleep(long duration, @Nonnull TimeUnit unit) {
+                mTime.sleep(duration, unit);
+            }
+        });
+        mExecutorManager = new CommentsPagesExecutorManager(syncExecutor, exampleDescription, fakeServer)
+                .withPostGuid("123");
+    }
+
+    @Test
+    public void testPagesAroundVisiblePagesAreLoaded() throws Exception {
+        final ListenerCallback<PagedExecutorManager.Pages<ResponseComments>> listener = mock(ListenerCallback.class);
+        mExecutorManager.setWindow(1);
+        mExecutorManager.register(listener);
+        mTime.runPending();
+
+        final PagedExecutorManager.Pages<ResponseComments> pages = getLastPages(listener);
+        assertThat(pages.getPageCount(), is(equalTo(3)));
+        assertThat(pages.getPage(0).get().getCommentList().get(0).getBody(), is(equalTo("post: 123, comment: 0")));
+        assertThat(pages.getPage(1).get().getCommentList().get(0).getBody(), is(equalTo("post: 123, comment: 10")));
+        assertThat(pages.getPage(2).isPresent(), is(equalTo(false)));
+        assertThat(pages.hasMore(), is(equalTo(true)));
+
+        mExecutorManager.unregister();
+    }
+
+    @Test
+    public void testPagesOutsideOfWindowAreReleasedAndRestored() throws Exception {
+        final ListenerCallback<PagedExecutorManager.Pages<ResponseComments>> listener = mock(ListenerCallback.class);
+        mExecutorManager.setWindow(1);
+        mExecutorManager.register(listener);
+        mTime.runPending();
+        reset(listener);
+
+        mExecutorManager.setVisiblePages(3, 3);
+        mTime.runPending();
+
+        final PagedExecutorManager.Pages<ResponseComments> scrolled = getLastPages(listener);
+        assertThat(scrolled.getPageCount(), is(equalTo(6)));
+        assertThat(scrolled.getPage(5).isPresent(), is(equalTo(false)));
+        assertThat(scrolled.getPage(0).isPresent(), is(equalTo(false)));
+        assertThat(scrolled.getPage(1).isPresent(), is(equalTo(false)));
+        assertThat(scrolled.getPage(4).get().getCommentList().get(0).getBody(), is(equalTo("post: 123, comment: 40")));
+        reset(listener);
+
+        mExecutorManager.setVisiblePages(0, 0);
+        mTime.runPending();
+
+        final PagedExecutorManager.Pages<ResponseComments> back = getLastPages(listener);
+        assertThat(back.getPage(0).get().getCommentList().get(0).getBody(), is(equalTo("post: 123, comment: 0")));
+        assertThat(back.getPage(3).isPresent(), is(equalTo(false)));
+
+        mExecutorManager.unregister();
+    }
+
+    private static PagedExecutorManager.Pages<ResponseComments> getLastPages(
+            ListenerCallback<PagedExecutorManager.Pages<ResponseComments>> listener) {
+        final ArgumentCaptor<PagedExecutorManager.Pages<ResponseComments>> captor = ArgumentCaptor.forClass(
+                (Class<PagedExecutorManager.Pages<ResponseComments>>) (Class<?>) PagedExecutorManager.Pages.class);
+        verify(listener, atLeastOnce()).onNewData(captor.capture());
+        return captor.getValue();
+    }
+}
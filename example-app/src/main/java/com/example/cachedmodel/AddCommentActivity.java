@@ -73,7 +73,8 @@ public class AddCommentActivity extends Activity {
         unregisterAddCommentExecutorManager();
         mExecutorManager = new AddCommentExecutorManager(
                 MainApplication.fromApplication(getApplication()).getSyncExecutor(),
-                MainApplication.fromApplication(getApplication()).getExampleDescription())
+                MainApplication.fromApplication(getApplication()).getExampleDescription(),
+                MainApplication.fromApplication(getApplication()).getFakeServer())
                 .withPostGuid("123")
                 .withBody(comment);
         mProgressLayout.setVisibility(View.VISIBLE);
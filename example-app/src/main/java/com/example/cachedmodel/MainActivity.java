@@ -29,7 +29,8 @@ import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.appunite.cache.ListenerCallback;
+import com.appunite.cache.ChangeDelta;
+import com.appunite.cache.DeltaListenerCallback;
 import com.example.api.CommentsExecutorManager;
 import com.example.api.model.Comment;
 import com.example.api.model.ResponseComments;
@@ -95,10 +96,11 @@ public class MainActivity extends Activity {
 
         mExecutorManager = new CommentsExecutorManager(
                 MainApplication.fromApplication(getApplication()).getSyncExecutor(),
-                MainApplication.fromApplication(getApplication()).getExampleDescription())
+                MainApplication.fromApplication(getApplication()).getExampleDescription(),
+                MainApplication.fromApplication(getApplication()).getFakeServer())
                 .withPostGuid("123");
         mExecutorManager
-                .register(new ListenerCallback<ResponseComments>() {
+                .register(new DeltaListenerCallback<ResponseComments>() {
                     @Override
                     public void onError(@Nonnull Throwable e) {
                         mProgress.setVisibility(View.GONE);
@@ -114,6 +116,18 @@ public class MainActivity extends Activity {
                         mAdapter.swapData(data.getCommentList());
                         loadMore();
                     }
+
+                    @Override
+                    public void onNewData(@Nonnull ResponseComments data, @Nullable ChangeDelta delta) {
+                        final int firstVisible = mListView.getFirstVisiblePosition();
+                        final View firstView = mListView.getChildAt(0);
+                        final int top = firstView == null ? 0 : firstView.getTop();
+                        onNewData(data);
+                        // Keep rows user is looking at in place, i.e. when comment is added above
+                        if (delta != null && (firstVisible > 0 || top < 0)) {
+                            mListView.setSelectionFromTop(delta.getNewPosition(firstVisible), top);
+                        }
+                    }
                 });
 
         mErrorView.setOnClickListener(new View.OnClickListener() {
@@ -143,6 +157,18 @@ public class MainActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mExecutorManager.setActive(true);
+    }
+
+    @Override
+    protected void onStop() {
+        mExecutorManager.setActive(false);
+        super.onStop();
+    }
+
     @Override
     protected void onDestroy() {
         mExecutorManager.unregister();
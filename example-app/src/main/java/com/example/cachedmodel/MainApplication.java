@@ -17,14 +17,22 @@
 package com.example.cachedmodel;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 
+import com.appunite.cache.AimdLimiter;
+import com.appunite.cache.BatchingScheduler;
 import com.appunite.cache.Scheduler;
 import com.appunite.cache.SyncExecutor;
 import com.example.api.internal.ExampleDescription;
+import com.example.api.internal.FakeServer;
+import com.google.common.base.Ticker;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -33,27 +41,73 @@ import javax.annotation.Nonnull;
 
 public class MainApplication extends Application {
 
+    private static final String TAG = MainApplication.class.getCanonicalName();
+    private static final String SNAPSHOT_FILE = "cache-snapshot";
+    private static final int MAX_CONCURRENT_CALLS = 8;
+
     private SyncExecutor mSyncExecutor;
     private ExampleDescription mExampleDescription;
+    private FakeServer mFakeServer;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
         final Handler handler = new Handler(Looper.getMainLooper());
-        final Scheduler scheduler = new Scheduler() {
+        final Scheduler mainThread = new Scheduler() {
 
             @Override
             public void schedule(@Nonnull Runnable runnable) {
                 handler.post(runnable);
             }
         };
+        // Burst of results is delivered in one main thread message, at most half a frame at once
+        final Scheduler scheduler = new BatchingScheduler(mainThread, 8, TimeUnit.MILLISECONDS);
 
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(3, 3,
+        // Limiter decides how many of those threads are used at once
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_CALLS, MAX_CONCURRENT_CALLS,
                 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>());
-        mSyncExecutor = new SyncExecutor(MoreExecutors.listeningDecorator(executor), scheduler);
+        final AimdLimiter limiter = new AimdLimiter.Builder()
+                .initialLimit(3)
+                .limits(1, MAX_CONCURRENT_CALLS)
+                .latencyThreshold(3, TimeUnit.SECONDS)
+                .build();
+        mSyncExecutor = new SyncExecutor(MoreExecutors.listeningDecorator(executor), scheduler,
+                limiter, Ticker.systemTicker());
         mExampleDescription = new ExampleDescription();
+        mFakeServer = new FakeServer();
+        final File snapshotFile = getSnapshotFile();
+        if (snapshotFile.exists()) {
+            try {
+                mExampleDescription.restoreSnapshot(snapshotFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not restore cache snapshot", e);
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mExampleDescription.writeSnapshot(getSnapshotFile());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write cache snapshot", e);
+                }
+            }
+        }).start();
+    }
+
+    @Nonnull
+    private File getSnapshotFile() {
+        return new File(getCacheDir(), SNAPSHOT_FILE);
     }
 
     public static MainApplication fromApplication(Application application) {
@@ -67,4 +121,8 @@ public class MainApplication extends Application {
     public SyncExecutor getSyncExecutor() {
         return mSyncExecutor;
     }
+
+    public FakeServer getFakeServer() {
+        return mFakeServer;
+    }
 }